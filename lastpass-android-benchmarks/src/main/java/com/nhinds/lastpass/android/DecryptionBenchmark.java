@@ -0,0 +1,91 @@
+package com.nhinds.lastpass.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nhinds.lastpass.PasswordInfo;
+import com.nhinds.lastpass.android.SnapshotFile.SnapshotPasswordStore;
+
+/**
+ * Benchmarks of restoring a {@link SessionSnapshot} from a snapshot file of a synthetic vault: opening it, decrypting
+ * every record as listing the passwords does (in chunks of at least {@link SnapshotFile#MIN_RECORDS_PER_THREAD} over
+ * {@link ParallelChunks#PARALLELISM} threads), decrypting every record the same way over a given number of threads to
+ * show the speedup, and decrypting only the records in one domain as the popup does. The snapshot's key is derived
+ * once, since deriving it is independent of the size of the vault.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DecryptionBenchmark {
+	private static final String EMAIL = "user@example.com";
+	private static final String DEVICE_ID = "0123456789abcdef0123456789abcdef01234567";
+
+	@Param({ "100", "1000", "10000", "50000" })
+	public int size;
+
+	private final Secret password = Secret.copyOf("correct horse battery staple");
+	private File file;
+	private SnapshotKey key;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.file = File.createTempFile("session", ".dat");
+		this.key = SnapshotKey.generate(EMAIL, this.password, DEVICE_ID);
+		SnapshotFile.write(this.file, new SyntheticVault(this.size), this.key, System.currentTimeMillis());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		if (!this.file.delete()) {
+			throw new IOException("Could not delete " + this.file);
+		}
+	}
+
+	@Benchmark
+	public SnapshotPasswordStore open() throws Exception {
+		return SnapshotFile.open(this.file).read(this.key);
+	}
+
+	@Benchmark
+	public Collection<? extends PasswordInfo> readAll() throws Exception {
+		return open().getPasswords();
+	}
+
+	/** Only used by {@link DecryptionBenchmark#readAllOver(Threads)}, so the other benchmarks aren't repeated for it */
+	@State(Scope.Benchmark)
+	public static class Threads {
+		/** The most threads to decrypt over. No more than {@link ParallelChunks#PARALLELISM} are ever used. */
+		@Param({ "1", "2", "4" })
+		public int threads;
+	}
+
+	@Benchmark
+	public Collection<? extends PasswordInfo> readAllOver(final Threads threads) throws Exception {
+		final SnapshotPasswordStore passwordStore = open();
+		passwordStore.readAll(threads.threads);
+		return passwordStore.getPasswords();
+	}
+
+	@Benchmark
+	public Collection<? extends PasswordInfo> readDomain() throws Exception {
+		return open().getPasswordsByRegisteredDomain(HostnameIndex.getRegisteredDomain(SyntheticVault.MATCHING_HOST));
+	}
+}
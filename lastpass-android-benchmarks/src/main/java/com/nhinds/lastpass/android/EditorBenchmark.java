@@ -0,0 +1,50 @@
+package com.nhinds.lastpass.android;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import android.text.InputType;
+
+/**
+ * Benchmarks of the per-editor work done before the popup is shown: deriving a hostname from the editor's package, and
+ * classifying its input type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class EditorBenchmark {
+	private static final String[] PACKAGES = { "com.google.android.gm", "com.site0.login", "org.mozilla.firefox",
+			"com.twitter.android", "uk.co.bbc.iplayer" };
+	private static final int[] INPUT_TYPES = { InputType.TYPE_CLASS_TEXT,
+			InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_PASSWORD,
+			InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_EMAIL_ADDRESS,
+			InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_WEB_PASSWORD,
+			InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD, InputType.TYPE_CLASS_NUMBER };
+
+	@Benchmark
+	public void getHostname(final Blackhole blackhole) {
+		for (final String packageName : PACKAGES) {
+			blackhole.consume(HostnameIndex.getHostname(packageName));
+		}
+	}
+
+	@Benchmark
+	public void isPassword(final Blackhole blackhole) {
+		for (final int inputType : INPUT_TYPES) {
+			blackhole.consume(InputTypes.isPassword(inputType));
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.nhinds.lastpass.android;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
+import com.nhinds.lastpass.encryption.EncryptionProvider;
+import com.nhinds.lastpass.encryption.KeyProvider;
+import com.nhinds.lastpass.encryption.PBKDF2SHA256KeyProvider;
+
+/**
+ * Benchmarks of the encryption used by {@link Preferences} for remembered values, with the same key derivation
+ * parameters. Preferences itself needs an Android context, so its encryption is reproduced here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class EncryptionBenchmark {
+	/** Must match the iterations used by {@link Preferences} */
+	private static final int KEY_ITERATIONS = 100;
+	private static final String DEVICE_ID = "0123456789abcdef0123456789abcdef01234567";
+	private static final String PASSWORD = "correct horse battery staple";
+
+	private final KeyProvider keyProvider = new PBKDF2SHA256KeyProvider();
+	private EncryptionProvider encryptionProvider;
+	private byte[] encryptedPassword;
+
+	@Setup
+	public void setUp() throws GeneralSecurityException {
+		this.encryptionProvider = new AES256EncryptionProvider(deriveKey());
+		this.encryptedPassword = this.encryptionProvider.encrypt(PASSWORD);
+	}
+
+	@Benchmark
+	public byte[] deriveKey() throws GeneralSecurityException {
+		return this.keyProvider.getKey(DEVICE_ID, DEVICE_ID, KEY_ITERATIONS);
+	}
+
+	@Benchmark
+	public byte[] encrypt() {
+		return this.encryptionProvider.encrypt(PASSWORD);
+	}
+
+	@Benchmark
+	public String decrypt() {
+		return this.encryptionProvider.decrypt(this.encryptedPassword);
+	}
+}
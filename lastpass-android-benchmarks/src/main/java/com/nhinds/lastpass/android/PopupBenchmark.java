@@ -0,0 +1,187 @@
+package com.nhinds.lastpass.android;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nhinds.lastpass.PasswordInfo;
+
+/**
+ * Benchmarks of the work done to show and filter the password popup: indexing the store, opening and reusing the popup
+ * with the matching passwords first, selecting the first page before it has been sorted, and searching it as the user
+ * types, including the first search of a new index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PopupBenchmark {
+	private static final String TYPED_QUERY = "site1";
+	/** The ids shown as recently picked, as many as the keyboard shows */
+	private static final int[] RECENT_IDS = { 3, 1, 4 };
+	/** The page size the popup selects while its index is being sorted */
+	private static final int PAGE_SIZE = 50;
+
+	@Param({ "100", "1000", "10000", "50000" })
+	public int size;
+
+	private SyntheticVault vault;
+	private HostnameIndex hostnameIndex;
+	private PasswordSearchIndex searchIndex;
+	private Collection<? extends PasswordInfo> matchingPasswords;
+	private boolean[] matching;
+	private int[] orderedIds;
+	private PasswordListModel popup;
+
+	@Setup
+	public void setUp() {
+		this.vault = new SyntheticVault(this.size);
+		this.hostnameIndex = new HostnameIndex(this.vault);
+		this.matchingPasswords = this.hostnameIndex.getPasswordsByPackage(SyntheticVault.MATCHING_PACKAGE);
+		this.searchIndex = new PasswordSearchIndex(this.vault.getPasswords());
+		this.matching = new boolean[this.searchIndex.size()];
+		for (final PasswordInfo passwordInfo : this.matchingPasswords) {
+			this.matching[this.searchIndex.idOf(passwordInfo)] = true;
+		}
+		this.orderedIds = new int[this.searchIndex.size()];
+		BestMatchFirstSorter.partition(this.searchIndex.getIdsByName(), this.matching, this.orderedIds);
+		this.popup = new PasswordListModel(this.searchIndex);
+		this.popup.setMatchingPasswords(this.matchingPasswords, RECENT_IDS);
+	}
+
+	/** A search index over the vault which has not been sorted by name yet */
+	@State(Scope.Thread)
+	public static class UnsortedIndex {
+		PasswordSearchIndex searchIndex;
+
+		/** Opening the popup sorts the index once it has been opened, so a fresh index is needed for every invocation */
+		@Setup(Level.Invocation)
+		public void setUp(final PopupBenchmark popup) {
+			this.searchIndex = new PasswordSearchIndex(popup.vault.getPasswords());
+		}
+	}
+
+	/** Opening the popup in an application once the index has been sorted, as the keyboard does for a new store */
+	@Benchmark
+	public PasswordListModel openPopup() {
+		final PasswordListModel model = new PasswordListModel(this.searchIndex);
+		model.setMatchingPasswords(this.matchingPasswords, RECENT_IDS);
+		return model;
+	}
+
+	/**
+	 * Opening the popup before the index has been sorted, which orders the matching passwords and selects the first
+	 * page of the others rather than waiting for the sort
+	 */
+	@Benchmark
+	public PasswordListModel openPopupBeforeSort(final UnsortedIndex unsorted) {
+		final PasswordListModel model = new PasswordListModel(unsorted.searchIndex);
+		model.setMatchingPasswords(this.matchingPasswords, RECENT_IDS);
+		return model;
+	}
+
+	/** Moving to another field of the same application, which reuses the popup and only rebinds it */
+	@Benchmark
+	public PasswordListModel rebindPopup() {
+		this.popup.setMatchingPasswords(this.matchingPasswords, RECENT_IDS);
+		return this.popup;
+	}
+
+	@Benchmark
+	public int[] buildSearchIndexAndSortByName() {
+		return new PasswordSearchIndex(this.vault.getPasswords()).getIdsByName();
+	}
+
+	/**
+	 * The first page of other passwords shown while the index is still being sorted. Compare with
+	 * {@link #buildSearchIndexAndSortByName()}, which the first page would otherwise wait for.
+	 */
+	@Benchmark
+	public int[] selectFirstPageByName() {
+		final NameWindow window = new NameWindow(this.searchIndex, this.matching);
+		window.selectNextPage(PAGE_SIZE);
+		return window.getIds();
+	}
+
+	/** Reordering for a different application once the index is sorted, as when the popup is reused */
+	@Benchmark
+	public int partitionMatchingFirst() {
+		return BestMatchFirstSorter.partition(this.searchIndex.getIdsByName(), this.matching, new int[this.matching.length]);
+	}
+
+	/**
+	 * A single keystroke of a search typed into a freshly opened popup, with the keystrokes before it already typed.
+	 * This is the latency the user sees for each character, which should stay within a frame.
+	 */
+	@Benchmark
+	public int[] searchAsTyped(final TypedSearch typed) {
+		return typed.search.search(typed.query);
+	}
+
+	/**
+	 * The first search long enough to use the n-gram postings, over an index which has just been built and never been
+	 * searched, such as a query pasted into a new popup. The postings are built with the index, so this shouldn't cost
+	 * more than searching an index which has been searched before.
+	 */
+	@Benchmark
+	public int[] firstSearchOfNewIndex(final NewIndexSearch newIndex) {
+		return newIndex.search.search(TYPED_QUERY);
+	}
+
+	/** A search over an index which has never been searched */
+	@State(Scope.Thread)
+	public static class NewIndexSearch {
+		PasswordSearch search;
+
+		/** A new index is needed for every invocation, so none of them has been searched before */
+		@Setup(Level.Invocation)
+		public void setUp(final PopupBenchmark popup) {
+			this.search = new PasswordSearch(new PasswordSearchIndex(popup.vault.getPasswords()), popup.orderedIds);
+		}
+	}
+
+	/** A popup search with every keystroke before the measured one already typed into it */
+	@State(Scope.Thread)
+	public static class TypedSearch {
+		/** The number of characters of {@link PopupBenchmark#TYPED_QUERY} typed, including the measured keystroke */
+		@Param({ "1", "2", "3", "4", "5" })
+		public int keystroke;
+
+		PasswordSearch search;
+		String query;
+
+		/** Each search narrows the one before it, so a fresh search is needed for every invocation */
+		@Setup(Level.Invocation)
+		public void setUp(final PopupBenchmark popup) {
+			this.search = new PasswordSearch(popup.searchIndex, popup.orderedIds);
+			for (int typed = 1; typed < this.keystroke; typed++) {
+				this.search.search(TYPED_QUERY.substring(0, typed));
+			}
+			this.query = TYPED_QUERY.substring(0, this.keystroke);
+		}
+	}
+
+	@Benchmark
+	public HostnameIndex buildHostnameIndex() {
+		return new HostnameIndex(this.vault);
+	}
+
+	@Benchmark
+	public Collection<? extends PasswordInfo> lookupByHostname() {
+		return this.hostnameIndex.getPasswordsByHostname(HostnameIndex.getHostname(SyntheticVault.MATCHING_PACKAGE));
+	}
+}
@@ -0,0 +1,91 @@
+package com.nhinds.lastpass.android;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.nhinds.lastpass.PasswordInfo;
+import com.nhinds.lastpass.PasswordStore;
+
+/**
+ * A generated password store for benchmarks. The same size always generates the same vault, with sites spread over a
+ * fixed number of registered domains so some hosts have many entries and most have few.
+ */
+class SyntheticVault implements PasswordStore {
+	/** The host every generated vault has entries for, for benchmarks which need a matching application */
+	static final String MATCHING_HOST = "login.site0.com";
+	/** The package name of the application matching {@link #MATCHING_HOST} */
+	static final String MATCHING_PACKAGE = "com.site0.login";
+
+	private static final String[] WORDS = { "mail", "bank", "shop", "news", "forum", "cloud", "photo", "music", "travel",
+			"work", "chat", "game", "video", "code", "wiki" };
+	private static final String[] SUBDOMAINS = { "www", "login", "accounts", "m", "secure" };
+
+	private final List<PasswordInfo> passwords;
+
+	SyntheticVault(final int size) {
+		final Random random = new Random(size);
+		final int domains = Math.max(size / 10, 1);
+		final List<PasswordInfo> passwords = new ArrayList<PasswordInfo>(size);
+		for (int i = 0; i < size; i++) {
+			final int domain = i < 5 ? 0 : random.nextInt(domains);
+			final String word = WORDS[random.nextInt(WORDS.length)];
+			final String host = SUBDOMAINS[i < 5 ? 1 : random.nextInt(SUBDOMAINS.length)] + ".site" + domain + ".com";
+			passwords.add(new SyntheticPasswordInfo(word + " " + i, "user" + random.nextInt(1000) + "@example.com",
+					Long.toHexString(random.nextLong()), "https://" + host + "/" + word));
+		}
+		this.passwords = Collections.unmodifiableList(passwords);
+	}
+
+	@Override
+	public Collection<? extends PasswordInfo> getPasswords() {
+		return this.passwords;
+	}
+
+	@Override
+	public Collection<? extends PasswordInfo> getPasswordsByHostname(final String hostname) {
+		final List<PasswordInfo> matches = new ArrayList<PasswordInfo>();
+		for (final PasswordInfo passwordInfo : this.passwords) {
+			if (hostname.equalsIgnoreCase(HostnameIndex.getHost(passwordInfo.getUrl()))) {
+				matches.add(passwordInfo);
+			}
+		}
+		return matches;
+	}
+
+	private static class SyntheticPasswordInfo implements PasswordInfo {
+		private final String name;
+		private final String username;
+		private final String password;
+		private final String url;
+
+		SyntheticPasswordInfo(final String name, final String username, final String password, final String url) {
+			this.name = name;
+			this.username = username;
+			this.password = password;
+			this.url = url;
+		}
+
+		@Override
+		public String getName() {
+			return this.name;
+		}
+
+		@Override
+		public String getUsername() {
+			return this.username;
+		}
+
+		@Override
+		public String getPassword() {
+			return this.password;
+		}
+
+		@Override
+		public String getUrl() {
+			return this.url;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.nhinds.lastpass.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.nhinds.lastpass.android.AuthenticatedEncryptionProvider.AuthenticationFailedException;
+
+/** Tests that snapshot encryption hides repeated plaintext and rejects anything which has been changed */
+public class AuthenticatedEncryptionProviderTest {
+	/** Several identical cipher blocks, which ECB would encrypt to identical blocks */
+	private static final String PLAINTEXT = "0123456789abcdef0123456789abcdef0123456789abcdef";
+
+	private final AuthenticatedEncryptionProvider provider = new AuthenticatedEncryptionProvider(key(1), key(2));
+
+	@Test
+	public void decryptsWhatItEncrypted() {
+		assertEquals(PLAINTEXT, this.provider.decrypt(this.provider.encrypt(PLAINTEXT)));
+		assertEquals("", this.provider.decrypt(this.provider.encrypt("")));
+	}
+
+	@Test
+	public void equalPlaintextsGiveDifferentCiphertexts() {
+		assertFalse(Arrays.equals(this.provider.encrypt(PLAINTEXT), this.provider.encrypt(PLAINTEXT)));
+	}
+
+	@Test
+	public void equalBlocksGiveDifferentCiphertextBlocks() {
+		final byte[] encrypted = this.provider.encrypt(PLAINTEXT);
+		// After the IV, each block of the plaintext is encrypted to its own block
+		assertFalse(Arrays.equals(Arrays.copyOfRange(encrypted, 16, 32), Arrays.copyOfRange(encrypted, 32, 48)));
+		assertFalse(Arrays.equals(Arrays.copyOfRange(encrypted, 32, 48), Arrays.copyOfRange(encrypted, 48, 64)));
+	}
+
+	@Test
+	public void changedCiphertextIsRejected() {
+		final byte[] encrypted = this.provider.encrypt(PLAINTEXT);
+		for (final int position : new int[] { 0, 20, encrypted.length - 1 }) {
+			final byte[] changed = encrypted.clone();
+			changed[position] ^= 1;
+			assertRejected(this.provider, changed);
+		}
+		assertRejected(this.provider, Arrays.copyOf(encrypted, encrypted.length - 16));
+		assertRejected(this.provider, new byte[0]);
+	}
+
+	@Test
+	public void otherAuthenticationKeyIsRejected() {
+		assertRejected(new AuthenticatedEncryptionProvider(key(1), key(3)), this.provider.encrypt(PLAINTEXT));
+	}
+
+	private static void assertRejected(final AuthenticatedEncryptionProvider provider, final byte[] encrypted) {
+		try {
+			provider.decrypt(encrypted);
+		} catch (final AuthenticationFailedException e) {
+			return;
+		}
+		throw new AssertionError("Changed ciphertext was decrypted");
+	}
+
+	private static byte[] key(final int value) {
+		final byte[] key = new byte[32];
+		Arrays.fill(key, (byte) value);
+		return key;
+	}
+}
@@ -0,0 +1,49 @@
+package com.nhinds.lastpass.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.nhinds.lastpass.PasswordInfo;
+
+/** Tests that fast fill only fills straight away when it is turned on and exactly one password matches */
+public class FastFillTest {
+	private final List<PasswordInfo> passwords = new ArrayList<PasswordInfo>(new SyntheticVault(10).getPasswords());
+	private final RecordingTarget target = new RecordingTarget();
+
+	@Test
+	public void singleMatchIsFilledWhenTurnedOn() {
+		final List<PasswordInfo> matching = Collections.singletonList(this.passwords.get(0));
+
+		assertTrue(FastFill.fill(true, matching, this.target));
+		assertEquals(matching, this.target.filled);
+	}
+
+	@Test
+	public void singleMatchIsNotFilledWhenTurnedOff() {
+		assertFalse(FastFill.fill(false, Collections.singletonList(this.passwords.get(0)), this.target));
+		assertTrue(this.target.filled.isEmpty());
+	}
+
+	@Test
+	public void severalMatchesAreNotFilled() {
+		assertFalse(FastFill.fill(true, this.passwords.subList(0, 2), this.target));
+		assertFalse(FastFill.fill(true, Collections.<PasswordInfo> emptyList(), this.target));
+		assertTrue(this.target.filled.isEmpty());
+	}
+
+	private static class RecordingTarget implements FastFill.Target {
+		final List<PasswordInfo> filled = new ArrayList<PasswordInfo>();
+
+		@Override
+		public void fill(final PasswordInfo passwordInfo) {
+			this.filled.add(passwordInfo);
+		}
+	}
+}
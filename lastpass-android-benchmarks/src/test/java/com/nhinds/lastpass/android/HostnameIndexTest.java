@@ -0,0 +1,95 @@
+package com.nhinds.lastpass.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.nhinds.lastpass.PasswordInfo;
+
+/**
+ * Tests that finding the passwords for an application only reads the passwords under its registered domain, and that
+ * scanning a store finds the same passwords as indexing it
+ */
+public class HostnameIndexTest {
+	private static final int VAULT_SIZE = 10000;
+
+	private final SyntheticVault vault = new SyntheticVault(VAULT_SIZE);
+
+	@Test
+	public void domainIndexedStoreIsOnlyReadForTheDomainLookedUp() {
+		final DomainIndexedVault indexedVault = new DomainIndexedVault(this.vault);
+		final HostnameIndex index = new HostnameIndex(indexedVault);
+
+		final Collection<? extends PasswordInfo> matching = index.getPasswordsByPackage(SyntheticVault.MATCHING_PACKAGE);
+
+		assertEquals(new ArrayList<PasswordInfo>(new HostnameIndex(this.vault).getPasswordsByPackage(
+				SyntheticVault.MATCHING_PACKAGE)), new ArrayList<PasswordInfo>(matching));
+		assertFalse(matching.isEmpty());
+		assertEquals(1, indexedVault.domainsRead);
+		assertEquals(0, indexedVault.fullReads);
+	}
+
+	@Test
+	public void eachDomainIsOnlyReadOnce() {
+		final DomainIndexedVault indexedVault = new DomainIndexedVault(this.vault);
+		final HostnameIndex index = new HostnameIndex(indexedVault);
+
+		final int matching = index.getPasswordsByHostname(SyntheticVault.MATCHING_HOST).size();
+		// Another host in the same registered domain
+		index.getPasswordsByHostname("www.site0.com");
+
+		assertEquals(matching, index.getPasswordsByHostname(SyntheticVault.MATCHING_HOST).size());
+		assertEquals(1, indexedVault.domainsRead);
+	}
+
+	@Test
+	public void scanningFindsWhatTheIndexFinds() {
+		final HostnameIndex index = new HostnameIndex(this.vault);
+
+		for (final String hostname : new String[] { SyntheticVault.MATCHING_HOST, "www.site0.com", "unknown.example.org" }) {
+			assertEquals(hostname, new ArrayList<PasswordInfo>(index.getPasswordsByHostname(hostname)),
+					new ArrayList<PasswordInfo>(HostnameIndex.scan(this.vault, hostname)));
+		}
+		assertFalse(HostnameIndex.scan(this.vault, SyntheticVault.MATCHING_HOST).isEmpty());
+	}
+
+	/** Counts how the vault is read, finding the passwords in a domain by scanning it as a snapshot scans its tags */
+	private static class DomainIndexedVault implements DomainIndexedPasswordStore {
+		private final SyntheticVault vault;
+		int fullReads;
+		int domainsRead;
+
+		DomainIndexedVault(final SyntheticVault vault) {
+			this.vault = vault;
+		}
+
+		@Override
+		public Collection<? extends PasswordInfo> getPasswords() {
+			this.fullReads++;
+			return this.vault.getPasswords();
+		}
+
+		@Override
+		public Collection<? extends PasswordInfo> getPasswordsByHostname(final String hostname) {
+			return this.vault.getPasswordsByHostname(hostname);
+		}
+
+		@Override
+		public Collection<? extends PasswordInfo> getPasswordsByRegisteredDomain(final String registeredDomain) {
+			this.domainsRead++;
+			final List<PasswordInfo> matches = new ArrayList<PasswordInfo>();
+			for (final PasswordInfo passwordInfo : this.vault.getPasswords()) {
+				final String host = HostnameIndex.getHost(passwordInfo.getUrl());
+				if (host != null && registeredDomain.equals(HostnameIndex.getRegisteredDomain(host))) {
+					matches.add(passwordInfo);
+				}
+			}
+			return matches;
+		}
+	}
+}
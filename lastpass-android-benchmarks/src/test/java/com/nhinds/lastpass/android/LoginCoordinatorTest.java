@@ -0,0 +1,157 @@
+package com.nhinds.lastpass.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** Tests that concurrent logins to one account share a single fetch of the vault */
+public class LoginCoordinatorTest {
+	private static final String ACCOUNT = LoginCoordinator.getAccount("User@Example.com ");
+	private static final String CREDENTIALS_KEY = "key";
+	private static final int REQUESTS = 500;
+	private static final int THREADS = 32;
+
+	private final LoginCoordinator<Listener> coordinator = new LoginCoordinator<Listener>();
+	private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+	/** The number of logins which were started, each of which would fetch the vault */
+	private final AtomicInteger fetches = new AtomicInteger();
+
+	@After
+	public void tearDown() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void concurrentRequestsStartOneFetch() throws Exception {
+		final List<Listener> listeners = requestConcurrently(REQUESTS, true);
+
+		assertEquals(1, this.fetches.get());
+		final FakeLogin login = onlyLoginInProgress();
+		login.complete();
+		for (final Listener listener : listeners) {
+			assertEquals(1, listener.results.get());
+		}
+	}
+
+	@Test
+	public void backgroundRequestsJoinAnOtpLogin() throws Exception {
+		final FakeLogin otpLogin = new FakeLogin();
+		assertNull(this.coordinator.join(ACCOUNT, null, true, new Listener(), otpLogin));
+
+		final List<Listener> listeners = requestConcurrently(REQUESTS, false);
+
+		assertEquals(0, this.fetches.get());
+		assertFalse("A background login superseded an OTP login", otpLogin.superseded);
+		otpLogin.complete();
+		for (final Listener listener : listeners) {
+			assertEquals(1, listener.results.get());
+		}
+	}
+
+	@Test
+	public void interactiveLoginSupersedesBackgroundLogin() {
+		final FakeLogin background = new FakeLogin();
+		assertNull(this.coordinator.join(ACCOUNT, CREDENTIALS_KEY, false, null, background));
+		final FakeLogin otpLogin = new FakeLogin();
+		assertNull(this.coordinator.join(ACCOUNT, null, true, new Listener(), otpLogin));
+
+		assertTrue(background.superseded);
+		this.coordinator.finished(ACCOUNT, background);
+		assertTrue("Finishing a superseded login ended the login superseding it", this.coordinator.isLoggingIn(ACCOUNT));
+		this.coordinator.finished(ACCOUNT, otpLogin);
+		assertFalse(this.coordinator.isLoggingIn(ACCOUNT));
+	}
+
+	@Test
+	public void loggingOutSupersedesEveryLogin() {
+		final int session = this.coordinator.getSession();
+		final FakeLogin login = new FakeLogin();
+		assertNull(this.coordinator.join(ACCOUNT, CREDENTIALS_KEY, true, new Listener(), login));
+
+		this.coordinator.loggedOut();
+
+		assertTrue(login.superseded);
+		assertFalse(this.coordinator.isLoggingIn(ACCOUNT));
+		assertFalse(this.coordinator.isCurrentSession(session));
+	}
+
+	/** Make the given number of login requests for the account at once, from many threads */
+	private List<Listener> requestConcurrently(final int requests, final boolean interactive) throws Exception {
+		final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Future<?>> futures = new CopyOnWriteArrayList<Future<?>>();
+		for (int i = 0; i < requests; i++) {
+			futures.add(this.executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					final Listener listener = new Listener();
+					final FakeLogin login = new FakeLogin();
+					start.await();
+					if (LoginCoordinatorTest.this.coordinator.join(ACCOUNT, CREDENTIALS_KEY, interactive, listener,
+							login) == null) {
+						LoginCoordinatorTest.this.fetches.incrementAndGet();
+						login.addListener(listener);
+					}
+					listeners.add(listener);
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (final Future<?> future : futures) {
+			future.get(10, TimeUnit.SECONDS);
+		}
+		assertEquals(requests, listeners.size());
+		return listeners;
+	}
+
+	private FakeLogin onlyLoginInProgress() {
+		final FakeLogin login = new FakeLogin();
+		final LoginCoordinator.Login<Listener> inProgress = this.coordinator.join(ACCOUNT, CREDENTIALS_KEY, false, null, login);
+		assertTrue(inProgress instanceof FakeLogin);
+		assertFalse(((FakeLogin) inProgress).superseded);
+		assertSame(inProgress, this.coordinator.join(ACCOUNT, CREDENTIALS_KEY, true, null, login));
+		return (FakeLogin) inProgress;
+	}
+
+	private static class Listener {
+		final AtomicInteger results = new AtomicInteger();
+	}
+
+	private class FakeLogin implements LoginCoordinator.Login<Listener> {
+		final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+		volatile boolean superseded;
+
+		@Override
+		public void addListener(final Listener listener) {
+			this.listeners.add(listener);
+		}
+
+		@Override
+		public void supersede() {
+			this.superseded = true;
+		}
+
+		void complete() {
+			LoginCoordinatorTest.this.coordinator.finished(ACCOUNT, this);
+			for (final Listener listener : this.listeners) {
+				listener.results.incrementAndGet();
+			}
+		}
+	}
+}
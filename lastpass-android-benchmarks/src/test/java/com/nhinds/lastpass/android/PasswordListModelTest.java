@@ -0,0 +1,127 @@
+package com.nhinds.lastpass.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nhinds.lastpass.PasswordInfo;
+
+/** Tests of the latency of opening the password popup, and of the rows it shows while its index is being sorted */
+public class PasswordListModelTest {
+	private static final int VAULT_SIZE = 10000;
+	private static final int[] RECENT_IDS = { 3, 1, 4 };
+	/** The time to draw a frame at 60 frames per second */
+	private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+	/** How many times the user moves between the username and password fields of an application */
+	private static final int REPEATED_FIELDS = 51;
+
+	private SyntheticVault vault;
+	private Collection<? extends PasswordInfo> matchingPasswords;
+
+	@Before
+	public void setUp() {
+		this.vault = new SyntheticVault(VAULT_SIZE);
+		this.matchingPasswords = new HostnameIndex(this.vault).getPasswordsByPackage(SyntheticVault.MATCHING_PACKAGE);
+	}
+
+	@Test
+	public void reopeningForAnotherFieldOnlyRebinds() {
+		final PasswordSearchIndex searchIndex = new PasswordSearchIndex(this.vault.getPasswords());
+		final PasswordListModel model = new PasswordListModel(searchIndex);
+		openAndSort(model, searchIndex);
+		final long[] rows = getRowIds(model);
+
+		final long[] latencies = new long[REPEATED_FIELDS];
+		for (int field = 0; field < REPEATED_FIELDS; field++) {
+			final long start = System.nanoTime();
+			final boolean needsSort = model.setMatchingPasswords(this.matchingPasswords, RECENT_IDS);
+			latencies[field] = System.nanoTime() - start;
+			assertFalse("Reopening for the same application should not need a sort", needsSort);
+		}
+		assertArrayEquals(rows, getRowIds(model));
+
+		Arrays.sort(latencies);
+		final long median = latencies[REPEATED_FIELDS / 2];
+		assertTrue("Reopening the popup took " + median + "ns, more than a frame", median < FRAME_NANOS);
+	}
+
+	@Test
+	public void openingBeforeTheSortShowsTheRowsTheSortWill() {
+		final PasswordSearchIndex searchIndex = new PasswordSearchIndex(this.vault.getPasswords());
+		final PasswordListModel model = new PasswordListModel(searchIndex);
+		assertTrue(model.setMatchingPasswords(this.matchingPasswords, RECENT_IDS));
+		assertFalse("Opening the popup should not wait for the index to be sorted", searchIndex.isSortedByName());
+		final long[] window = getRowIds(model);
+
+		searchIndex.getIdsByName();
+		assertTrue(model.indexSorted());
+		final long[] sorted = getRowIds(model);
+		assertEquals(VAULT_SIZE + 3, sorted.length);
+		assertArrayEquals(window, Arrays.copyOf(sorted, window.length));
+	}
+
+	@Test
+	public void openingDuringTheSortDoesNotWaitForIt() throws Exception {
+		final PasswordSearchIndex searchIndex = new PasswordSearchIndex(this.vault.getPasswords());
+		final PasswordListModel model = new PasswordListModel(searchIndex);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			// The index is sorted holding its own lock, so holding it stands in for a sort in progress
+			synchronized (searchIndex) {
+				final Future<Boolean> needsSort = executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return model.setMatchingPasswords(PasswordListModelTest.this.matchingPasswords, RECENT_IDS);
+					}
+				});
+				assertTrue(needsSort.get(1, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void pagesBeforeTheSortMatchTheSortedOrder() {
+		final PasswordSearchIndex searchIndex = new PasswordSearchIndex(this.vault.getPasswords());
+		final PasswordListModel model = new PasswordListModel(searchIndex);
+		model.setMatchingPasswords(this.matchingPasswords, RECENT_IDS);
+		for (int page = 0; page < 3; page++) {
+			assertTrue(model.needsNextPage(model.getCount() - 1));
+			assertTrue(model.selectNextPage());
+		}
+		final long[] window = getRowIds(model);
+
+		final PasswordSearchIndex sortedIndex = new PasswordSearchIndex(this.vault.getPasswords());
+		final PasswordListModel sortedModel = new PasswordListModel(sortedIndex);
+		openAndSort(sortedModel, sortedIndex);
+		assertArrayEquals(window, Arrays.copyOf(getRowIds(sortedModel), window.length));
+	}
+
+	private void openAndSort(final PasswordListModel model, final PasswordSearchIndex searchIndex) {
+		if (model.setMatchingPasswords(this.matchingPasswords, RECENT_IDS)) {
+			searchIndex.getIdsByName();
+			model.indexSorted();
+		}
+	}
+
+	private static long[] getRowIds(final PasswordListModel model) {
+		final long[] ids = new long[model.getCount()];
+		for (int position = 0; position < ids.length; position++) {
+			ids[position] = model.getItemId(position);
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,73 @@
+package com.nhinds.lastpass.android;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.nhinds.lastpass.PasswordInfo;
+
+/**
+ * Tests that binding the rows of the password popup does not allocate, by counting the bytes allocated by this thread
+ * while reading every row of a 10,000 password popup the way {@link PasswordInfoListAdapter#getView} does.
+ * <p>
+ * The views themselves need the Android framework, so only the work done against the row model is covered here.
+ */
+public class RowBindingAllocationTest {
+	private static final int VAULT_SIZE = 10000;
+	/** Enough passes over the rows for them to be compiled, so allocations the compiler removes aren't counted */
+	private static final int WARMUP_PASSES = 200;
+
+	@Test
+	public void bindingRowsDoesNotAllocate() {
+		final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadBean;
+		Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+		allocations.setThreadAllocatedMemoryEnabled(true);
+
+		final SyntheticVault vault = new SyntheticVault(VAULT_SIZE);
+		final PasswordSearchIndex searchIndex = new PasswordSearchIndex(vault.getPasswords());
+		final PasswordListModel model = new PasswordListModel(searchIndex);
+		if (model.setMatchingPasswords(new HostnameIndex(vault).getPasswordsByPackage(SyntheticVault.MATCHING_PACKAGE),
+				new int[] { 3, 1, 4 })) {
+			searchIndex.getIdsByName();
+			model.indexSorted();
+		}
+		for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+			bindRows(model);
+		}
+
+		final long threadId = Thread.currentThread().getId();
+		// Reading the allocation counter can itself allocate, so that is measured and subtracted
+		final long overheadStart = allocations.getThreadAllocatedBytes(threadId);
+		final long overheadEnd = allocations.getThreadAllocatedBytes(threadId);
+		final long start = allocations.getThreadAllocatedBytes(threadId);
+		final long bound = bindRows(model);
+		final long allocated = allocations.getThreadAllocatedBytes(threadId) - start - (overheadEnd - overheadStart);
+
+		assertTrue(bound > VAULT_SIZE);
+		// Any object is more than a byte, so this means not a single row allocated anything
+		assertTrue("Binding " + model.getCount() + " rows allocated " + allocated + " bytes", allocated < model.getCount());
+	}
+
+	/** @return a value depending on every row, so the reads can't be optimized away */
+	private static long bindRows(final PasswordListModel model) {
+		long bound = 0;
+		for (int position = 0; position < model.getCount(); position++) {
+			bound += model.getItemId(position);
+			if (model.isHeader(position)) {
+				bound += model.getHeader(position);
+			} else {
+				if (model.needsNextPage(position)) {
+					bound++;
+				}
+				final PasswordInfo item = model.getItem(position);
+				bound += item.getName().length() + item.getUsername().length();
+			}
+		}
+		return bound;
+	}
+}
@@ -0,0 +1,109 @@
+package com.nhinds.lastpass.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the memory footprint of a {@link Secret}, by counting the bytes allocated by this thread while copying and
+ * reading a password the way a login does. A copy should only allocate its characters, reading it as a
+ * {@link CharSequence} shouldn't allocate anything, and once it has been wiped none of its characters are left.
+ */
+public class SecretFootprintTest {
+	private static final String PASSWORD = "correct horse battery staple";
+	private static final int COPIES = 10000;
+	/** Enough passes for the copies to be compiled, so allocations the compiler removes aren't counted */
+	private static final int WARMUP_PASSES = 200;
+
+	private com.sun.management.ThreadMXBean allocations;
+	private long overhead;
+
+	@Before
+	public void enableAllocationCounting() {
+		final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+		this.allocations = (com.sun.management.ThreadMXBean) threadBean;
+		Assume.assumeTrue(this.allocations.isThreadAllocatedMemorySupported());
+		this.allocations.setThreadAllocatedMemoryEnabled(true);
+		// Reading the allocation counter can itself allocate, so that is measured and subtracted
+		final long threadId = Thread.currentThread().getId();
+		final long overheadStart = this.allocations.getThreadAllocatedBytes(threadId);
+		this.overhead = this.allocations.getThreadAllocatedBytes(threadId) - overheadStart;
+	}
+
+	@Test
+	public void copyingASecretOnlyAllocatesItsCharacters() {
+		final Secret password = Secret.copyOf(PASSWORD);
+		for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+			copy(password);
+		}
+
+		final long threadId = Thread.currentThread().getId();
+		final long start = this.allocations.getThreadAllocatedBytes(threadId);
+		final long copied = copy(password);
+		final long allocated = this.allocations.getThreadAllocatedBytes(threadId) - start - this.overhead;
+
+		assertTrue(copied > 0);
+		// Two bytes per character, plus the headers of the array and the secret
+		assertTrue("Copying a secret allocated " + allocated / COPIES + " bytes",
+				allocated / COPIES <= 2 * PASSWORD.length() + 64);
+	}
+
+	@Test
+	public void wipingASecretLeavesNoPlaintext() throws Exception {
+		final Secret password = Secret.copyOf(PASSWORD);
+		final Field charsField = Secret.class.getDeclaredField("chars");
+		charsField.setAccessible(true);
+		final char[] chars = (char[]) charsField.get(password);
+
+		password.wipe();
+
+		assertArrayEquals(new char[PASSWORD.length()], chars);
+	}
+
+	@Test
+	public void readingASecretDoesNotAllocate() {
+		final Secret password = Secret.copyOf(PASSWORD);
+		for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+			read(password);
+		}
+
+		final long threadId = Thread.currentThread().getId();
+		final long start = this.allocations.getThreadAllocatedBytes(threadId);
+		long read = 0;
+		for (int i = 0; i < COPIES; i++) {
+			read += read(password);
+		}
+		final long allocated = this.allocations.getThreadAllocatedBytes(threadId) - start - this.overhead;
+
+		assertTrue(read > 0);
+		// Any object is more than a byte, so this means not a single read allocated anything
+		assertTrue("Reading a secret " + COPIES + " times allocated " + allocated + " bytes", allocated < COPIES);
+	}
+
+	/** Copy the password as a login hands it to a background task, wiping each copy once it has been used */
+	private static long copy(final Secret password) {
+		long copied = 0;
+		for (int i = 0; i < COPIES; i++) {
+			final Secret copy = Secret.copyOf(password);
+			copied += copy.charAt(i % copy.length());
+			copy.wipe();
+		}
+		return copied;
+	}
+
+	/** @return a value depending on every character, so the reads can't be optimized away */
+	private static long read(final CharSequence password) {
+		long read = 0;
+		for (int i = 0; i < password.length(); i++) {
+			read += password.charAt(i);
+		}
+		return read;
+	}
+}
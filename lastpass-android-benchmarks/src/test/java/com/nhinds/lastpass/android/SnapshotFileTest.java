@@ -0,0 +1,125 @@
+package com.nhinds.lastpass.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.Files;
+import com.nhinds.lastpass.PasswordInfo;
+import com.nhinds.lastpass.PasswordStore;
+import com.nhinds.lastpass.android.SnapshotFile.SnapshotPasswordStore;
+
+/**
+ * Tests of the session snapshot format, and that renewing a snapshot of a store which hasn't changed only writes its
+ * header
+ */
+public class SnapshotFileTest {
+	private static final int VAULT_SIZE = 1000;
+	private static final String EMAIL = "User@Example.com";
+	private static final String DEVICE_ID = "0123456789abcdef0123456789abcdef01234567";
+	private static final long CREATED = 1400000000000L;
+	private static final long RENEWED = CREATED + 24 * 60 * 60 * 1000;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final SyntheticVault vault = new SyntheticVault(VAULT_SIZE);
+	private final Secret password = Secret.copyOf("master password");
+
+	@Test
+	public void restoresEveryPassword() throws Exception {
+		final File file = write();
+
+		final SnapshotPasswordStore restored = read(file, this.password);
+
+		assertEquals(fields(this.vault), fields(restored));
+		assertEquals(SnapshotFile.fingerprint(this.vault), restored.getFingerprint());
+		assertEquals(CREATED, SnapshotFile.open(file).getCreated());
+	}
+
+	@Test
+	public void otherCredentialsDoNotMatch() throws Exception {
+		final File file = write();
+
+		assertNull(SnapshotFile.open(file).deriveKey(EMAIL, Secret.copyOf("another password"), DEVICE_ID));
+		assertNull(SnapshotFile.open(file).deriveKey("other@example.com", this.password, DEVICE_ID));
+		// The account is case insensitive
+		assertNotNull(SnapshotFile.open(file).deriveKey(EMAIL.toLowerCase(), this.password, DEVICE_ID));
+	}
+
+	@Test
+	public void snapshotCopiedToAnotherDeviceDoesNotMatch() throws Exception {
+		final File file = write();
+
+		assertNull(SnapshotFile.open(file).deriveKey(EMAIL, this.password, "fedcba9876543210fedcba9876543210fedcba98"));
+	}
+
+	@Test
+	public void touchOnlyRewritesTheHeader() throws Exception {
+		final File file = write();
+		final byte[] before = Files.toByteArray(file);
+
+		SnapshotFile.touch(file, RENEWED);
+
+		final byte[] after = Files.toByteArray(file);
+		assertEquals(before.length, after.length);
+		assertFalse(Arrays.equals(Arrays.copyOf(before, SnapshotFile.HEADER_SIZE), Arrays.copyOf(after, SnapshotFile.HEADER_SIZE)));
+		assertArrayEquals(Arrays.copyOfRange(before, SnapshotFile.HEADER_SIZE, before.length),
+				Arrays.copyOfRange(after, SnapshotFile.HEADER_SIZE, after.length));
+		assertEquals(RENEWED, SnapshotFile.open(file).getCreated());
+		// The renewed snapshot still restores the same store
+		final SnapshotPasswordStore restored = read(file, this.password);
+		assertEquals(SnapshotFile.fingerprint(this.vault), restored.getFingerprint());
+		assertEquals(fields(this.vault), fields(restored));
+	}
+
+	@Test(expected = FileNotFoundException.class)
+	public void touchDoesNotCreateASnapshot() throws Exception {
+		SnapshotFile.touch(new File(this.folder.getRoot(), "missing.dat"), RENEWED);
+	}
+
+	@Test(expected = SnapshotFile.CorruptSnapshotException.class)
+	public void touchRejectsACorruptSnapshot() throws Exception {
+		final File file = write();
+		final byte[] bytes = Files.toByteArray(file);
+		bytes[SnapshotFile.HEADER_SIZE - 1] ^= 1;
+		Files.write(bytes, file);
+
+		SnapshotFile.touch(file, RENEWED);
+	}
+
+	private File write() throws Exception {
+		final File file = this.folder.newFile("session.dat");
+		assertEquals(SnapshotFile.fingerprint(this.vault),
+				SnapshotFile.write(file, this.vault, SnapshotKey.generate(EMAIL, this.password, DEVICE_ID), CREATED));
+		return file;
+	}
+
+	private static SnapshotPasswordStore read(final File file, final Secret password) throws Exception {
+		final SnapshotFile snapshot = SnapshotFile.open(file);
+		final SnapshotKey key = snapshot.deriveKey(EMAIL, password, DEVICE_ID);
+		assertNotNull(key);
+		return snapshot.read(key);
+	}
+
+	private static List<List<String>> fields(final PasswordStore passwordStore) {
+		final List<List<String>> fields = new ArrayList<List<String>>();
+		for (final PasswordInfo passwordInfo : passwordStore.getPasswords()) {
+			fields.add(Arrays.asList(passwordInfo.getName(), passwordInfo.getUsername(), passwordInfo.getPassword(),
+					passwordInfo.getUrl()));
+		}
+		return fields;
+	}
+}
@@ -0,0 +1,94 @@
+package com.nhinds.lastpass.android;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.nhinds.lastpass.encryption.EncryptionProvider;
+
+/**
+ * Encrypts with AES-CBC under a random IV, then authenticates the IV and ciphertext with HMAC-SHA256 under a separate
+ * key. Unlike {@link com.nhinds.lastpass.encryption.AES256EncryptionProvider}, equal plaintexts (or blocks of them) don't
+ * give equal ciphertexts, and anything which has been changed is rejected before it is decrypted.
+ * <p>
+ * Each encrypted value is the IV, followed by the ciphertext, followed by the MAC. Like the ciphers it uses, a provider is
+ * not thread safe.
+ */
+final class AuthenticatedEncryptionProvider implements EncryptionProvider {
+	private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final int IV_LENGTH = 16;
+	private static final int MAC_LENGTH = 32;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final SecretKeySpec encryptionKey;
+	private final Cipher cipher;
+	private final Mac mac;
+
+	AuthenticatedEncryptionProvider(final byte[] encryptionKey, final byte[] authenticationKey) {
+		this.encryptionKey = new SecretKeySpec(encryptionKey, "AES");
+		try {
+			this.cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+			this.mac = Mac.getInstance(MAC_ALGORITHM);
+			this.mac.init(new SecretKeySpec(authenticationKey, MAC_ALGORITHM));
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException(CIPHER_ALGORITHM + " with " + MAC_ALGORITHM + " is not available", e);
+		}
+	}
+
+	@Override
+	public byte[] encrypt(final String plaintext) {
+		final byte[] iv = new byte[IV_LENGTH];
+		RANDOM.nextBytes(iv);
+		final byte[] ciphertext;
+		try {
+			this.cipher.init(Cipher.ENCRYPT_MODE, this.encryptionKey, new IvParameterSpec(iv));
+			ciphertext = this.cipher.doFinal(plaintext.getBytes(UTF_8));
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException("Error encrypting", e);
+		}
+		final byte[] encrypted = new byte[IV_LENGTH + ciphertext.length + MAC_LENGTH];
+		System.arraycopy(iv, 0, encrypted, 0, IV_LENGTH);
+		System.arraycopy(ciphertext, 0, encrypted, IV_LENGTH, ciphertext.length);
+		this.mac.update(encrypted, 0, IV_LENGTH + ciphertext.length);
+		System.arraycopy(this.mac.doFinal(), 0, encrypted, IV_LENGTH + ciphertext.length, MAC_LENGTH);
+		return encrypted;
+	}
+
+	/** @throws AuthenticationFailedException if the value was not encrypted with this key, or has been changed since */
+	@Override
+	public String decrypt(final byte[] encrypted) {
+		if (encrypted.length < IV_LENGTH + MAC_LENGTH) {
+			throw new AuthenticationFailedException("Encrypted value is too short");
+		}
+		final int macOffset = encrypted.length - MAC_LENGTH;
+		this.mac.update(encrypted, 0, macOffset);
+		if (!MessageDigest.isEqual(this.mac.doFinal(), Arrays.copyOfRange(encrypted, macOffset, encrypted.length))) {
+			throw new AuthenticationFailedException("Encrypted value failed authentication");
+		}
+		try {
+			this.cipher.init(Cipher.DECRYPT_MODE, this.encryptionKey, new IvParameterSpec(encrypted, 0, IV_LENGTH));
+			return new String(this.cipher.doFinal(encrypted, IV_LENGTH, macOffset - IV_LENGTH), UTF_8);
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException("Error decrypting", e);
+		}
+	}
+
+	/** Thrown when a value is rejected because it was not encrypted with the expected key, or has been changed */
+	static class AuthenticationFailedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		AuthenticationFailedException(final String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.nhinds.lastpass.android;
+
+import java.text.Collator;
+
+/**
+ * Orders passwords so the entries matching the current application come first, with each section ordered by name.
+ * <p>
+ * The ids of an index are only sorted by name once, by {@link PasswordSearchIndex#getIdsByName()}. Ordering them for
+ * an application is then a partition of the sorted ids, with a single array lookup per password.
+ */
+public final class BestMatchFirstSorter {
+	private BestMatchFirstSorter() {
+	}
+
+	/**
+	 * Order ids with the matching ids first, keeping the existing order within each section. Partitioning ids which are
+	 * already sorted by name gives each section in name order, without sorting again.
+	 *
+	 * @param ids The ids to order
+	 * @param matching Whether each id matches, indexed by id
+	 * @param target Where to write the ordered ids, at least as long as {@code ids}
+	 * @return the number of matching ids, which are at the start of {@code target}
+	 */
+	static int partition(final int[] ids, final boolean[] matching, final int[] target) {
+		int matchingCount = 0;
+		for (final int id : ids) {
+			if (matching[id]) {
+				target[matchingCount++] = id;
+			}
+		}
+		int position = matchingCount;
+		for (final int id : ids) {
+			if (!matching[id]) {
+				target[position++] = id;
+			}
+		}
+		return matchingCount;
+	}
+
+	/** @return a case-insensitive collator for the default locale. Collators are not thread safe, so one is created per sort */
+	static Collator newCollator() {
+		final Collator collator = Collator.getInstance();
+		collator.setStrength(Collator.SECONDARY);
+		return collator;
+	}
+}
@@ -0,0 +1,15 @@
+package com.nhinds.lastpass.android;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/** Schedules the first background refresh of the password store after the device boots */
+public class BootReceiver extends BroadcastReceiver {
+	@Override
+	public void onReceive(final Context context, final Intent intent) {
+		if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+			VaultRefreshScheduler.scheduleAfterBoot(context);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.nhinds.lastpass.android;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The remembered login credentials, kept in their own preferences file and loaded into memory once per process.
+ * <p>
+ * The password is only held encrypted. It is decrypted each time it is read, into a {@link Secret} which the caller
+ * wipes once the login or restore it was read for is done, so no plaintext copy is kept for the life of the process.
+ * Changes update memory immediately and are written in the background, with the email and password written together in a single
+ * atomic edit.
+ * <p>
+ * Credentials remembered by earlier versions in the main {@link Preferences} file are moved here the first time the
+ * store is loaded.
+ */
+final class CredentialStore {
+	private static final String FILE_NAME = "Credentials";
+
+	private static final String VERSION_PREF = "VERSION";
+	private static final String EMAIL_PREF = "EMAIL";
+	private static final String PASSWORD_PREF = "PASSWORD";
+	private static final int VERSION = 1;
+
+	private static CredentialStore instance;
+
+	private final SharedPreferences file;
+	private String email;
+	/** The hex encoded, encrypted password */
+	private String encryptedPassword;
+
+	private CredentialStore(final SharedPreferences file) {
+		this.file = file;
+		this.email = file.getString(EMAIL_PREF, null);
+		this.encryptedPassword = file.getString(PASSWORD_PREF, null);
+	}
+
+	/**
+	 * @param legacyPreferences
+	 *            The preferences file credentials were remembered in before this store existed, to migrate them from
+	 * @param legacyEmailPref
+	 *            The name of the email preference in the legacy file
+	 * @param legacyPasswordPref
+	 *            The name of the encrypted password preference in the legacy file
+	 * @return the credential store for this process
+	 */
+	static synchronized CredentialStore get(final Context context, final SharedPreferences legacyPreferences,
+			final String legacyEmailPref, final String legacyPasswordPref) {
+		if (instance == null) {
+			final SharedPreferences file = context.getSharedPreferences(FILE_NAME, Activity.MODE_PRIVATE);
+			if (!file.contains(VERSION_PREF)) {
+				// The password was already encrypted with the same key, so it is moved as is. The new file is written
+				// synchronously before the old values are removed, so a crash can't lose them.
+				file.edit().putString(EMAIL_PREF, legacyPreferences.getString(legacyEmailPref, null))
+						.putString(PASSWORD_PREF, legacyPreferences.getString(legacyPasswordPref, null))
+						.putInt(VERSION_PREF, VERSION).commit();
+				legacyPreferences.edit().remove(legacyEmailPref).remove(legacyPasswordPref).apply();
+			}
+			instance = new CredentialStore(file);
+		}
+		return instance;
+	}
+
+	synchronized String getEmail() {
+		return this.email;
+	}
+
+	synchronized boolean hasPassword() {
+		return this.encryptedPassword != null;
+	}
+
+	/**
+	 * @param preferences Used to decrypt the password
+	 * @return the decrypted password, which the caller should wipe, or null if there is none or it could not be
+	 *         decrypted
+	 */
+	synchronized Secret getPassword(final Preferences preferences) {
+		return Secret.copyOf(preferences.decrypt(this.encryptedPassword));
+	}
+
+	/**
+	 * Replace the remembered email
+	 *
+	 * @param email The email to remember, or null to forget it
+	 */
+	synchronized void setEmail(final String email) {
+		this.email = email;
+		this.file.edit().putString(EMAIL_PREF, email).apply();
+	}
+
+	/**
+	 * Replace the remembered password
+	 *
+	 * @param encryptedPassword The hex encoded, encrypted password, or null to forget it
+	 */
+	synchronized void setPassword(final String encryptedPassword) {
+		this.encryptedPassword = encryptedPassword;
+		this.file.edit().putString(PASSWORD_PREF, encryptedPassword).apply();
+	}
+
+	/** Replace both the remembered email and password in a single edit */
+	synchronized void setEmailAndPassword(final String email, final String encryptedPassword) {
+		this.email = email;
+		this.encryptedPassword = encryptedPassword;
+		this.file.edit().putString(EMAIL_PREF, email).putString(PASSWORD_PREF, encryptedPassword).apply();
+	}
+}
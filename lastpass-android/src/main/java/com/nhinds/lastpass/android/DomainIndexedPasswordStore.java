@@ -0,0 +1,18 @@
+package com.nhinds.lastpass.android;
+
+import java.util.Collection;
+
+import com.nhinds.lastpass.PasswordInfo;
+import com.nhinds.lastpass.PasswordStore;
+
+/**
+ * A password store which can find the passwords in a registered domain without reading every password, so
+ * {@link HostnameIndex} only reads the passwords under the domains it is asked for.
+ */
+interface DomainIndexedPasswordStore extends PasswordStore {
+	/**
+	 * @param registeredDomain A registered domain, as returned by {@link HostnameIndex#getRegisteredDomain(String)}
+	 * @return the passwords whose URL has a host in the given registered domain. Never null.
+	 */
+	Collection<? extends PasswordInfo> getPasswordsByRegisteredDomain(String registeredDomain);
+}
@@ -0,0 +1,35 @@
+package com.nhinds.lastpass.android;
+
+import java.util.Collection;
+
+import com.nhinds.lastpass.PasswordInfo;
+
+/**
+ * Fills the only password matching an application straight away, without building or showing the password popup, when
+ * the user has turned it on with {@link Preferences#setFastFillEnabled(boolean)}.
+ */
+final class FastFill {
+	/** Where a password is filled, such as the current editor */
+	interface Target {
+		void fill(PasswordInfo passwordInfo);
+	}
+
+	private FastFill() {
+	}
+
+	/**
+	 * @param enabled Whether fast fill is turned on
+	 * @param matchingPasswords The passwords matching the application
+	 * @return true if the only matching password was filled, so the popup should not be shown
+	 */
+	static boolean fill(final boolean enabled, final Collection<? extends PasswordInfo> matchingPasswords,
+			final Target target) {
+		if (!enabled || matchingPasswords.size() != 1) {
+			return false;
+		}
+		// There is nothing to choose between, so fill it without building the popup
+		Metrics.increment("popup.fastFill");
+		target.fill(matchingPasswords.iterator().next());
+		return true;
+	}
+}
@@ -0,0 +1,243 @@
+package com.nhinds.lastpass.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Remembers which passwords were picked in which application, so the popup can show the likeliest picks first.
+ * <p>
+ * Each pick is scored by frecency: every pick adds 1 to the score of the password picked, and scores halve every
+ * {@link #HALF_LIFE_MILLIS}, so a password picked often and recently ranks highest. Passwords are identified by
+ * {@link PasswordSearchIndex#keyOf(com.nhinds.lastpass.PasswordInfo)}.
+ * <p>
+ * The cache is bounded to the {@value #MAX_PACKAGES} most recently used applications and the
+ * {@value #MAX_PICKS_PER_PACKAGE} highest scoring passwords for each. It is loaded once per process, and changes are
+ * written in the background.
+ */
+final class FrecencyCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(FrecencyCache.class);
+
+	private static final String FILE_NAME = "frecency.json";
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	static final int MAX_PACKAGES = 100;
+	static final int MAX_PICKS_PER_PACKAGE = 10;
+	private static final long HALF_LIFE_MILLIS = TimeUnit.DAYS.toMillis(14);
+
+	private static final String VERSION = "version";
+	private static final String PACKAGES = "packages";
+	private static final String PACKAGE = "package";
+	private static final String PICKS = "picks";
+	private static final String KEY = "key";
+	private static final String SCORE = "score";
+	private static final String TIME = "time";
+	private static final int FORMAT_VERSION = 1;
+
+	/** Writes are queued on a single thread so they happen in order, and never delay the popup */
+	private static final ExecutorService WRITE_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("frecency-writer-%d").setDaemon(true).build());
+
+	private static FrecencyCache instance;
+
+	private final File file;
+	/** The picks for each package, in least recently used order */
+	private final Map<String, List<Pick>> picks = new LinkedHashMap<String, List<Pick>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, List<Pick>> eldest) {
+			return size() > MAX_PACKAGES;
+		}
+	};
+
+	private FrecencyCache(final File file) {
+		this.file = file;
+	}
+
+	/** @return the frecency cache for this process, loading it the first time it is needed */
+	static synchronized FrecencyCache get(final Context context) {
+		if (instance == null) {
+			final long start = Metrics.startTimer();
+			instance = new FrecencyCache(new File(context.getFilesDir(), FILE_NAME));
+			instance.load();
+			Metrics.stopTimer("frecency.load", start);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param packageName The application to get the picks for
+	 * @param limit The most keys to return
+	 * @return the keys of the passwords picked in the given application, highest scoring first
+	 */
+	synchronized int[] getTopKeys(final String packageName, final int limit) {
+		final List<Pick> packagePicks = this.picks.get(packageName);
+		if (packagePicks == null) {
+			return new int[0];
+		}
+		final int[] keys = new int[Math.min(limit, packagePicks.size())];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = packagePicks.get(i).key;
+		}
+		return keys;
+	}
+
+	/**
+	 * Record that a password was picked in the given application
+	 *
+	 * @param packageName The application the password was picked in
+	 * @param key The {@link PasswordSearchIndex#keyOf(com.nhinds.lastpass.PasswordInfo) key} of the password picked
+	 */
+	synchronized void recordPick(final String packageName, final int key) {
+		final long now = System.currentTimeMillis();
+		List<Pick> packagePicks = this.picks.get(packageName);
+		if (packagePicks == null) {
+			packagePicks = new ArrayList<Pick>(MAX_PICKS_PER_PACKAGE + 1);
+			this.picks.put(packageName, packagePicks);
+		}
+		Pick picked = null;
+		for (final Pick pick : packagePicks) {
+			if (pick.key == key) {
+				picked = pick;
+				break;
+			}
+		}
+		if (picked == null) {
+			packagePicks.add(new Pick(key, 1, now));
+		} else {
+			picked.score = picked.scoreAt(now) + 1;
+			picked.time = now;
+		}
+		sort(packagePicks, now);
+		while (packagePicks.size() > MAX_PICKS_PER_PACKAGE) {
+			packagePicks.remove(packagePicks.size() - 1);
+		}
+		save();
+	}
+
+	/** Forget every pick, for example when logging out */
+	synchronized void clear() {
+		this.picks.clear();
+		WRITE_EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (FrecencyCache.this.file.exists() && !FrecencyCache.this.file.delete()) {
+					LOGGER.warn("Could not delete {}", FrecencyCache.this.file);
+				}
+			}
+		});
+	}
+
+	private static void sort(final List<Pick> packagePicks, final long now) {
+		Collections.sort(packagePicks, new Comparator<Pick>() {
+			@Override
+			public int compare(final Pick pick1, final Pick pick2) {
+				return Double.compare(pick2.scoreAt(now), pick1.scoreAt(now));
+			}
+		});
+	}
+
+	private void load() {
+		if (!this.file.exists()) {
+			return;
+		}
+		try {
+			final JSONObject json = new JSONObject(Files.toString(this.file, CHARSET));
+			if (json.optInt(VERSION) != FORMAT_VERSION) {
+				LOGGER.debug("Discarding frecency cache with unknown version {}", json.opt(VERSION));
+				return;
+			}
+			final long now = System.currentTimeMillis();
+			final JSONArray packages = json.getJSONArray(PACKAGES);
+			for (int i = 0; i < packages.length(); i++) {
+				final JSONObject packageJson = packages.getJSONObject(i);
+				final JSONArray picksJson = packageJson.getJSONArray(PICKS);
+				final List<Pick> packagePicks = new ArrayList<Pick>(MAX_PICKS_PER_PACKAGE + 1);
+				for (int j = 0; j < picksJson.length() && j < MAX_PICKS_PER_PACKAGE; j++) {
+					final JSONObject pickJson = picksJson.getJSONObject(j);
+					packagePicks.add(new Pick(pickJson.getInt(KEY), pickJson.getDouble(SCORE), pickJson.getLong(TIME)));
+				}
+				sort(packagePicks, now);
+				this.picks.put(packageJson.getString(PACKAGE), packagePicks);
+			}
+		} catch (final JSONException e) {
+			LOGGER.warn("Discarding unreadable frecency cache", e);
+			this.picks.clear();
+		} catch (final IOException e) {
+			LOGGER.warn("Error reading frecency cache", e);
+		}
+	}
+
+	/** Write the current picks in the background. Must be called while holding this cache's lock. */
+	private void save() {
+		final String json;
+		try {
+			final JSONArray packages = new JSONArray();
+			// Saved least recently used first, so loading them restores the same order
+			for (final Map.Entry<String, List<Pick>> entry : this.picks.entrySet()) {
+				final JSONArray picksJson = new JSONArray();
+				for (final Pick pick : entry.getValue()) {
+					picksJson.put(new JSONObject().put(KEY, pick.key).put(SCORE, pick.score).put(TIME, pick.time));
+				}
+				packages.put(new JSONObject().put(PACKAGE, entry.getKey()).put(PICKS, picksJson));
+			}
+			json = new JSONObject().put(VERSION, FORMAT_VERSION).put(PACKAGES, packages).toString();
+		} catch (final JSONException e) {
+			LOGGER.warn("Error creating frecency cache", e);
+			return;
+		}
+		WRITE_EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				// Write to a temporary file and rename it so a partially written cache is never read
+				final File tempFile = new File(FrecencyCache.this.file.getPath() + ".tmp");
+				try {
+					Files.write(json, tempFile, CHARSET);
+					if (!tempFile.renameTo(FrecencyCache.this.file)) {
+						throw new IOException("Could not rename " + tempFile + " to " + FrecencyCache.this.file);
+					}
+				} catch (final IOException e) {
+					LOGGER.warn("Error writing frecency cache", e);
+				}
+			}
+		});
+	}
+
+	private static class Pick {
+		final int key;
+		/** The score as of {@link #time} */
+		double score;
+		long time;
+
+		Pick(final int key, final double score, final long time) {
+			this.key = key;
+			this.score = score;
+			this.time = time;
+		}
+
+		double scoreAt(final long now) {
+			return this.score * Math.pow(0.5, (double) Math.max(now - this.time, 0) / HALF_LIFE_MILLIS);
+		}
+	}
+}
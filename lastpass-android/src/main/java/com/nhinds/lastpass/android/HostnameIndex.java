@@ -0,0 +1,179 @@
+package com.nhinds.lastpass.android;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.net.InternetDomainName;
+import com.nhinds.lastpass.PasswordInfo;
+import com.nhinds.lastpass.PasswordStore;
+
+/**
+ * Index of the passwords in a store by the domains of their URLs, used to find the passwords matching an application.
+ * <p>
+ * Each password is indexed under the host of its URL and every parent domain down to the registered domain (eTLD+1),
+ * so a lookup walks the hostname from most to least specific and returns the first level with any passwords: an exact
+ * host match wins over a parent domain, which wins over a registered domain match. Lookups by application package are
+ * memoized, so repeatedly opening the popup in the same application is a single map lookup.
+ * <p>
+ * A {@link DomainIndexedPasswordStore} is indexed a registered domain at a time, as domains are looked up, so only the
+ * passwords under the domains looked up are read. Any other store is indexed in full when the index is created.
+ * <p>
+ * If no domain level matches, the lookup falls back to {@link PasswordStore#getPasswordsByHostname(String)}.
+ * <p>
+ * Building the index over a store which isn't indexed by domain reads every password, so it is built off the UI thread;
+ * until it has been, {@link #scan(PasswordStore, String)} finds the same passwords without an index.
+ */
+public class HostnameIndex {
+	private final PasswordStore passwordStore;
+	private final Map<String, List<PasswordInfo>> passwordsByDomain = new HashMap<String, List<PasswordInfo>>();
+	private final Map<String, Collection<? extends PasswordInfo>> passwordsByPackage = new HashMap<String, Collection<? extends PasswordInfo>>();
+	/** The registered domains indexed so far, if the store is indexed by domain */
+	private final Set<String> indexedDomains = new HashSet<String>();
+
+	public HostnameIndex(final PasswordStore passwordStore) {
+		this.passwordStore = passwordStore;
+		if (!(passwordStore instanceof DomainIndexedPasswordStore)) {
+			index(passwordStore.getPasswords());
+		}
+	}
+
+	private void index(final Collection<? extends PasswordInfo> passwordInfos) {
+		for (final PasswordInfo passwordInfo : passwordInfos) {
+			final String host = getHost(passwordInfo.getUrl());
+			if (host != null) {
+				for (final String domain : getDomainLevels(host)) {
+					List<PasswordInfo> domainPasswords = this.passwordsByDomain.get(domain);
+					if (domainPasswords == null) {
+						domainPasswords = new ArrayList<PasswordInfo>(1);
+						this.passwordsByDomain.put(domain, domainPasswords);
+					}
+					domainPasswords.add(passwordInfo);
+				}
+			}
+		}
+	}
+
+	/** @return the passwords matching the application with the given package name. Never null. */
+	public Collection<? extends PasswordInfo> getPasswordsByPackage(final String packageName) {
+		Collection<? extends PasswordInfo> passwords = this.passwordsByPackage.get(packageName);
+		if (passwords == null) {
+			passwords = getPasswordsByHostname(getHostname(packageName));
+			this.passwordsByPackage.put(packageName, passwords);
+		}
+		return passwords;
+	}
+
+	/** @return the passwords matching the given hostname most specifically */
+	public Collection<? extends PasswordInfo> getPasswordsByHostname(final String hostname) {
+		final List<String> levels = getDomainLevels(hostname.toLowerCase());
+		if (this.passwordStore instanceof DomainIndexedPasswordStore) {
+			// Every level of the hostname is in its registered domain, so indexing that domain indexes every level
+			final String registeredDomain = levels.get(levels.size() - 1);
+			if (this.indexedDomains.add(registeredDomain)) {
+				index(((DomainIndexedPasswordStore) this.passwordStore).getPasswordsByRegisteredDomain(registeredDomain));
+			}
+		}
+		for (final String domain : levels) {
+			final List<PasswordInfo> passwords = this.passwordsByDomain.get(domain);
+			if (passwords != null) {
+				return Collections.unmodifiableList(passwords);
+			}
+		}
+		return this.passwordStore.getPasswordsByHostname(hostname);
+	}
+
+	/**
+	 * Find the passwords matching the given hostname as {@link #getPasswordsByHostname(String)} does, by scanning every
+	 * password in the store rather than building an index. Used until the index over a store has been built.
+	 */
+	static Collection<? extends PasswordInfo> scan(final PasswordStore passwordStore, final String hostname) {
+		final List<String> levels = getDomainLevels(hostname.toLowerCase());
+		// The most specific level matched so far, and the passwords in it
+		int matchedLevel = levels.size();
+		List<PasswordInfo> matches = new ArrayList<PasswordInfo>();
+		for (final PasswordInfo passwordInfo : passwordStore.getPasswords()) {
+			final int level = getMatchingLevel(levels, getHost(passwordInfo.getUrl()));
+			if (level < matchedLevel) {
+				matchedLevel = level;
+				matches = new ArrayList<PasswordInfo>();
+			}
+			if (level == matchedLevel && level < levels.size()) {
+				matches.add(passwordInfo);
+			}
+		}
+		return matches.isEmpty() ? passwordStore.getPasswordsByHostname(hostname) : Collections.unmodifiableList(matches);
+	}
+
+	/** @return the index of the most specific of the given domain levels the host is in, or the number of levels if none */
+	private static int getMatchingLevel(final List<String> levels, final String host) {
+		if (host != null) {
+			for (int level = 0; level < levels.size(); level++) {
+				final String domain = levels.get(level);
+				if (host.endsWith(domain)
+						&& (host.length() == domain.length() || host.charAt(host.length() - domain.length() - 1) == '.')) {
+					return level;
+				}
+			}
+		}
+		return levels.size();
+	}
+
+	/** @return the hostname an application package corresponds to, e.g. {@code com.example.app -> app.example.com} */
+	static String getHostname(final String packageName) {
+		return StringUtils.reverseDelimited(packageName, '.');
+	}
+
+	/** @return the lower case host of the given URL, or null if it has none */
+	static String getHost(final String url) {
+		if (url == null) {
+			return null;
+		}
+		try {
+			final String host = new URI(url).getHost();
+			return host == null ? null : host.toLowerCase();
+		} catch (final URISyntaxException e) {
+			return null;
+		}
+	}
+
+	/** @return the registered domain (eTLD+1) of the given host, or the host itself if it has no known public suffix */
+	static String getRegisteredDomain(final String host) {
+		final List<String> levels = getDomainLevels(host.toLowerCase());
+		return levels.get(levels.size() - 1);
+	}
+
+	/**
+	 * @return the given host followed by each of its parent domains, ending with its registered domain. Hosts which are
+	 *         not under a known public suffix only return themselves.
+	 */
+	private static List<String> getDomainLevels(final String host) {
+		final InternetDomainName domainName;
+		try {
+			domainName = InternetDomainName.from(host);
+		} catch (final IllegalArgumentException e) {
+			return Collections.singletonList(host);
+		}
+		if (!domainName.isUnderPublicSuffix()) {
+			return Collections.singletonList(host);
+		}
+		final InternetDomainName registeredDomain = domainName.topPrivateDomain();
+		final List<String> levels = new ArrayList<String>();
+		InternetDomainName level = domainName;
+		levels.add(level.toString());
+		while (!level.equals(registeredDomain)) {
+			level = level.parent();
+			levels.add(level.toString());
+		}
+		return levels;
+	}
+}
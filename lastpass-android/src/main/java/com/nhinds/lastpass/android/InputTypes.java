@@ -0,0 +1,19 @@
+package com.nhinds.lastpass.android;
+
+import android.text.InputType;
+
+/**
+ * Classification of editor input types. This only uses the {@link InputType} constants, so it can be used without
+ * the Android framework.
+ */
+final class InputTypes {
+	private InputTypes() {
+	}
+
+	/** @return true if the given input type is for a password, in which case the password rather than the username is entered */
+	static boolean isPassword(int inputType) {
+		int variation = inputType & InputType.TYPE_MASK_VARIATION;
+		return variation == InputType.TYPE_TEXT_VARIATION_PASSWORD || variation == InputType.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD
+				|| variation == InputType.TYPE_TEXT_VARIATION_WEB_PASSWORD;
+	}
+}
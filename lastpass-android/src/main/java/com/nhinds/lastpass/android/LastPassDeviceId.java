@@ -1,18 +1,76 @@
 package com.nhinds.lastpass.android;
 
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.Validate;
 
 import android.content.Context;
 import android.provider.Settings.Secure;
 
+/**
+ * The device identifier given to lastpass. It is computed once per process and cached until {@link #invalidate()} is
+ * called.
+ */
 public class LastPassDeviceId {
+	/** Computes a device identifier */
+	public interface Provider {
+		String get(Context context);
+	}
+
+	/** Provider which derives the device identifier from this android's device id */
+	public static final Provider ANDROID_ID_PROVIDER = new Provider() {
+		@Override
+		public String get(Context context) {
+			String androidId = Secure.getString(context.getContentResolver(), Secure.ANDROID_ID);
+			// Include this application's package name so the id would be different if 2 applications on the same android device used the
+			// library
+			return DigestUtils.shaHex(context.getPackageName() + "-" + androidId);
+		}
+	};
+
+	private static final Object LOCK = new Object();
+
+	private static Provider provider = ANDROID_ID_PROVIDER;
+	private static volatile String deviceId;
+
 	/**
-	 * Get a device identifier for lastpass based off this android's device id.
+	 * Get a device identifier for lastpass, computing it if it has not been computed in this process.
 	 */
 	public static String get(Context context) {
-		String androidId = Secure.getString(context.getContentResolver(), Secure.ANDROID_ID);
-		// Include this application's package name so the id would be different if 2 applications on the same android device used the
-		// library
-		return DigestUtils.shaHex(context.getPackageName() + "-" + androidId);
+		String id = deviceId;
+		if (id == null) {
+			synchronized (LOCK) {
+				id = deviceId;
+				if (id == null) {
+					final long start = Metrics.startTimer();
+					id = provider.get(context);
+					Metrics.stopTimer("deviceId.get", start);
+					deviceId = id;
+				}
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * Discard the cached device identifier, so it is computed again the next time it is needed. This should be called
+	 * if the underlying device id may have changed.
+	 */
+	public static void invalidate() {
+		synchronized (LOCK) {
+			deviceId = null;
+		}
+	}
+
+	/**
+	 * Set how the device identifier is computed, discarding any cached identifier
+	 *
+	 * @param newProvider The provider to compute the identifier with, not null
+	 */
+	public static void setProvider(final Provider newProvider) {
+		Validate.notNull(newProvider);
+		synchronized (LOCK) {
+			provider = newProvider;
+			deviceId = null;
+		}
 	}
 }
@@ -40,6 +40,7 @@ public class LoginActivity extends Activity implements UserLoginListener {
 	private EditText mPasswordView;
 	private CheckBox mRememberEmailView;
 	private CheckBox mRememberPasswordView;
+	private CheckBox mFastFillView;
 
 	private EditText mOtpView;
 	private CheckBox mTrustDeviceView;
@@ -63,6 +64,7 @@ public class LoginActivity extends Activity implements UserLoginListener {
 		this.mTrustedDeviceLabelView = findTypedViewById(R.id.trusted_device_label);
 		this.mRememberEmailView = findTypedViewById(R.id.remember_email);
 		this.mRememberPasswordView = findTypedViewById(R.id.remember_password);
+		this.mFastFillView = findTypedViewById(R.id.fast_fill);
 
 		String rememberedEmail = this.preferences.getRememberedEmail();
 		if (rememberedEmail != null) {
@@ -71,11 +73,14 @@ public class LoginActivity extends Activity implements UserLoginListener {
 			this.mRememberPasswordView.setEnabled(true);
 			this.mPasswordView.requestFocus();
 		}
-		String rememberedPassword = this.preferences.getRememberedPassword();
+		Secret rememberedPassword = this.preferences.getRememberedPassword();
 		if (rememberedPassword != null) {
+			// The view keeps its own copy of the text
 			this.mPasswordView.setText(rememberedPassword);
+			rememberedPassword.wipe();
 			this.mRememberPasswordView.setChecked(true);
 		}
+		this.mFastFillView.setChecked(this.preferences.isFastFillEnabled());
 
 		addListener(R.id.password, R.id.sign_in_button, new Runnable() {
 			@Override
@@ -103,6 +108,14 @@ public class LoginActivity extends Activity implements UserLoginListener {
 				LoginActivity.this.mRememberPasswordView.setEnabled(isChecked);
 			}
 		});
+
+		// Unlike the remembered credentials, this applies straight away rather than on the next login
+		this.mFastFillView.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+			@Override
+			public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+				LoginActivity.this.preferences.setFastFillEnabled(isChecked);
+			}
+		});
 		
 		// If we were launched with a "cached OTP login" intent, show the OTP form to login with the cached/remembered email and password
 		if (CACHED_OTP_LOGIN.equals(getIntent().getAction()) && rememberedEmail != null && rememberedPassword != null) {
@@ -115,6 +128,8 @@ public class LoginActivity extends Activity implements UserLoginListener {
 				this.mPasswordView.setError(errorFromIntent);
 			}
 		}
+		// The password view and login task factory keep their own copies
+		Secret.wipe(rememberedPassword);
 	}
 	
 	private void addListener(final int textId, final int buttonId, final Runnable action) {
@@ -149,7 +164,7 @@ public class LoginActivity extends Activity implements UserLoginListener {
 
 		if (validateNotEmpty(this.mEmailView, this.mPasswordView)) {
 			String email = this.mEmailView.getText().toString();
-			String password = this.mPasswordView.getText().toString();
+			Secret password = Secret.copyOf(this.mPasswordView.getText());
 
 			boolean rememberEmail = this.mRememberEmailView.isChecked();
 			boolean rememberPassword = rememberEmail && this.mRememberPasswordView.isChecked();
@@ -157,12 +172,13 @@ public class LoginActivity extends Activity implements UserLoginListener {
 
 			// kick off a background task to perform the user login attempt.
 			createAuthTaskFactory(email, password);
+			password.wipe();
 			this.mAuthTaskFactory.loginWithoutOtp();
 		}
 	}
 
-	private void createAuthTaskFactory(final String email, final String password) {
-		this.mAuthTaskFactory = UserLoginTaskFactory.create(email, password, this, this);
+	private void createAuthTaskFactory(final String email, final Secret password) {
+		this.mAuthTaskFactory = UserLoginTaskFactory.create(email, password, true, this, this);
 	}
 
 	private void attemptOtpLogin() {
@@ -0,0 +1,112 @@
+package com.nhinds.lastpass.android;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the logins in progress in this process, so there is at most one login in progress per account.
+ * <p>
+ * Logins are tracked by account. A background login, which was started without the user asking for it, never cancels
+ * another login: it joins whichever login is in progress for the account, and is given the same result. An
+ * interactive login joins the login in progress if it has the same credentials, and otherwise supersedes it, which
+ * cancels it. A login with an OTP has no credentials key, so is never joined by another interactive login.
+ * <p>
+ * Logging out supersedes every login in progress and starts a new session, so a login which was already running can
+ * check it still belongs to the current session before publishing anything.
+ *
+ * @param <L> The type of listener given the result of a login
+ */
+final class LoginCoordinator<L> {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LoginCoordinator.class);
+
+	/** A login which later requests can join, and a login with priority over it can supersede */
+	interface Login<L> {
+		/** Also give the result of this login to the given listener. May be called from any thread. */
+		void addListener(L listener);
+
+		/** Cancel this login, giving its listeners a cancelled result */
+		void supersede();
+	}
+
+	private final Map<String, InProgressLogin<L>> logins = new HashMap<String, InProgressLogin<L>>();
+	private int session;
+
+	/**
+	 * Join the login in progress for the given account, or record the given login as the login in progress if it
+	 * takes priority over the login in progress or there is none. May be called from any thread.
+	 *
+	 * @param account The account being logged in to
+	 * @param credentialsKey Identifies the credentials being used, or null if the login can never be joined
+	 * @param interactive True if the user asked for this login, so it takes priority over a background login
+	 * @param listener The listener to give the result of the joined login to, or null if the result is not needed
+	 * @param login The login to start if there is nothing to join
+	 * @return the joined login, or null if the given login is now in progress and must be started
+	 */
+	synchronized Login<L> join(final String account, final String credentialsKey, final boolean interactive,
+			final L listener, final Login<L> login) {
+		final InProgressLogin<L> inProgress = this.logins.get(account);
+		if (inProgress != null) {
+			if (!interactive || (credentialsKey != null && credentialsKey.equals(inProgress.credentialsKey))) {
+				LOGGER.debug("Joining login already in progress");
+				if (listener != null) {
+					inProgress.login.addListener(listener);
+				}
+				return inProgress.login;
+			}
+			LOGGER.debug("Cancelling login superseded by a new login");
+			inProgress.login.supersede();
+		}
+		this.logins.put(account, new InProgressLogin<L>(credentialsKey, login));
+		return null;
+	}
+
+	/** Record that a login has finished, if it is still the login in progress for the account */
+	synchronized void finished(final String account, final Login<L> login) {
+		final InProgressLogin<L> inProgress = this.logins.get(account);
+		if (inProgress != null && inProgress.login == login) {
+			this.logins.remove(account);
+		}
+	}
+
+	/** @return true if a login is in progress for the given account */
+	synchronized boolean isLoggingIn(final String account) {
+		return this.logins.containsKey(account);
+	}
+
+	/** @return the current session, which changes every time the user logs out */
+	synchronized int getSession() {
+		return this.session;
+	}
+
+	/** @return true if the user has not logged out since the given {@link #getSession() session} started */
+	synchronized boolean isCurrentSession(final int session) {
+		return this.session == session;
+	}
+
+	/** End the current session, superseding every login in progress so none of them can complete */
+	synchronized void loggedOut() {
+		this.session++;
+		for (final InProgressLogin<L> inProgress : this.logins.values()) {
+			inProgress.login.supersede();
+		}
+		this.logins.clear();
+	}
+
+	/** @return the key a login to the given email address is tracked under */
+	static String getAccount(final String email) {
+		return email.trim().toLowerCase();
+	}
+
+	private static class InProgressLogin<L> {
+		final String credentialsKey;
+		final Login<L> login;
+
+		InProgressLogin(final String credentialsKey, final Login<L> login) {
+			this.credentialsKey = credentialsKey;
+			this.login = login;
+		}
+	}
+}
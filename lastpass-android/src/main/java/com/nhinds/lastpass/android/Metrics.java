@@ -0,0 +1,157 @@
+package com.nhinds.lastpass.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+
+import com.google.common.io.Files;
+
+/**
+ * Lightweight, process-wide timers and counters for the hot paths of the keyboard.
+ * <p>
+ * Timings are taken from {@link System#nanoTime()} and recorded into histograms with power-of-two microsecond
+ * buckets, so recording is a map lookup and a few atomic increments and is cheap enough to leave enabled. Nothing is
+ * logged as values are recorded; the current values are written out as CSV, and logged at debug level, by
+ * {@link #dump(Context)}.
+ */
+public final class Metrics {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+
+	private static final String DUMP_FILE_NAME = "metrics.csv";
+
+	private static final ConcurrentMap<String, Histogram> TIMERS = new ConcurrentHashMap<String, Histogram>();
+	private static final ConcurrentMap<String, AtomicLong> COUNTERS = new ConcurrentHashMap<String, AtomicLong>();
+
+	private Metrics() {
+	}
+
+	/** @return a start time to later pass to {@link #stopTimer(String, long)} */
+	public static long startTimer() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record the time since the given start time
+	 *
+	 * @param name The name of the timer
+	 * @param startNanos The start time, from {@link #startTimer()}
+	 */
+	public static void stopTimer(final String name, final long startNanos) {
+		recordTime(name, System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/** Record a duration which was measured elsewhere */
+	public static void recordTime(final String name, final long duration, final TimeUnit unit) {
+		final long micros = unit.toMicros(duration);
+		getHistogram(name).record(micros);
+	}
+
+	/** Increment the named counter by one */
+	public static void increment(final String name) {
+		AtomicLong counter = COUNTERS.get(name);
+		if (counter == null) {
+			final AtomicLong newCounter = new AtomicLong();
+			counter = COUNTERS.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	private static Histogram getHistogram(final String name) {
+		Histogram histogram = TIMERS.get(name);
+		if (histogram == null) {
+			final Histogram newHistogram = new Histogram();
+			histogram = TIMERS.putIfAbsent(name, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return the current timers and counters as CSV. Percentiles are the upper bound of the histogram bucket they fall
+	 *         in.
+	 */
+	public static String toCsv() {
+		final StringBuilder csv = new StringBuilder("type,name,count,total_us,max_us,p50_us,p90_us,p99_us\n");
+		for (final Map.Entry<String, Histogram> timer : sorted(TIMERS).entrySet()) {
+			final Histogram histogram = timer.getValue();
+			csv.append("timer,").append(timer.getKey()).append(',').append(histogram.count.get()).append(',')
+					.append(histogram.total.get()).append(',').append(histogram.max.get()).append(',')
+					.append(histogram.percentile(50)).append(',').append(histogram.percentile(90)).append(',')
+					.append(histogram.percentile(99)).append('\n');
+		}
+		for (final Map.Entry<String, AtomicLong> counter : sorted(COUNTERS).entrySet()) {
+			csv.append("counter,").append(counter.getKey()).append(',').append(counter.getValue().get()).append(",,,,,\n");
+		}
+		return csv.toString();
+	}
+
+	/**
+	 * Write the current timers and counters as CSV to this application's files directory, also logging them at debug
+	 * level
+	 *
+	 * @return the file written to
+	 */
+	public static File dump(final Context context) throws IOException {
+		final File file = new File(context.getFilesDir(), DUMP_FILE_NAME);
+		final String csv = toCsv();
+		Files.write(csv, file, Charset.forName("UTF-8"));
+		LOGGER.info("Wrote metrics to {}", file);
+		LOGGER.debug("Metrics:\n{}", csv);
+		return file;
+	}
+
+	private static <V> SortedMap<String, V> sorted(final Map<String, V> map) {
+		return new TreeMap<String, V>(map);
+	}
+
+	/** Histogram of microsecond values, with bucket {@code i} holding values below {@code 2^i} */
+	private static class Histogram {
+		private static final int BUCKETS = 40;
+
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong total = new AtomicLong();
+		final AtomicLong max = new AtomicLong();
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		void record(final long micros) {
+			final long value = Math.max(micros, 0);
+			this.count.incrementAndGet();
+			this.total.addAndGet(value);
+			long currentMax;
+			while (value > (currentMax = this.max.get()) && !this.max.compareAndSet(currentMax, value)) {
+				// retry until the max is at least this value
+			}
+			this.buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1));
+		}
+
+		long percentile(final int percent) {
+			final long target = (this.count.get() * percent + 99) / 100;
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += this.buckets.get(i);
+				if (seen >= target && seen > 0) {
+					return Math.min((1L << i) - 1, this.max.get());
+				}
+			}
+			return this.max.get();
+		}
+	}
+}
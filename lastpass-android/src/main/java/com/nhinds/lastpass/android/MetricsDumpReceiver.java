@@ -0,0 +1,33 @@
+package com.nhinds.lastpass.android;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Writes the current {@link Metrics} to this application's files directory when it receives {@link #ACTION_DUMP}.
+ * <p>
+ * The receiver requires the {@code DUMP} permission, so it can be triggered over adb with
+ * {@code adb shell am broadcast -a com.nhinds.lastpass.android.DUMP_METRICS} but not by other applications.
+ */
+public class MetricsDumpReceiver extends BroadcastReceiver {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetricsDumpReceiver.class);
+
+	public static final String ACTION_DUMP = "com.nhinds.lastpass.android.DUMP_METRICS";
+
+	@Override
+	public void onReceive(final Context context, final Intent intent) {
+		if (ACTION_DUMP.equals(intent.getAction())) {
+			try {
+				Metrics.dump(context);
+			} catch (final IOException e) {
+				LOGGER.error("Error writing metrics", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.nhinds.lastpass.android;
+
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The ids of an index in the order {@link PasswordSearchIndex#getIdsByName()} gives them, selected a page at a time so
+ * the first page can be shown without sorting the whole index.
+ * <p>
+ * Each page is a single pass over the ids not yet selected, keeping the first names seen in a heap bounded to the page
+ * size. A page costs one comparison for most ids rather than a full sort, and ids already selected are skipped without
+ * being compared.
+ */
+final class NameWindow {
+	private final PasswordSearchIndex index;
+	/** Whether each id is excluded or has already been selected, indexed by id */
+	private final boolean[] skipped;
+	private final Comparator<Integer> byName;
+	private int[] ids = new int[0];
+	private int remaining;
+
+	/**
+	 * @param index The index to select ids from
+	 * @param excluded Whether each id should be left out of the window, indexed by id
+	 */
+	NameWindow(final PasswordSearchIndex index, final boolean[] excluded) {
+		this.index = index;
+		this.skipped = excluded.clone();
+		for (final boolean skip : this.skipped) {
+			if (!skip) {
+				this.remaining++;
+			}
+		}
+		final Collator collator = BestMatchFirstSorter.newCollator();
+		this.byName = new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer id1, final Integer id2) {
+				final int byName = collator.compare(getName(id1), getName(id2));
+				// The full sort is stable, so passwords with equal names stay in id order
+				return byName != 0 ? byName : id1.compareTo(id2);
+			}
+		};
+	}
+
+	/** @return the ids selected so far, in name order */
+	int[] getIds() {
+		return this.ids;
+	}
+
+	/** @return true if every id has been selected */
+	boolean isComplete() {
+		return this.remaining == 0;
+	}
+
+	/** Select the next page of ids, appending them to {@link #getIds()} */
+	void selectNextPage(final int pageSize) {
+		final int size = Math.min(pageSize, this.remaining);
+		if (size == 0) {
+			return;
+		}
+		final PriorityQueue<Integer> lastFirst = new PriorityQueue<Integer>(size, Collections.reverseOrder(this.byName));
+		for (int id = 0; id < this.skipped.length; id++) {
+			if (!this.skipped[id]) {
+				if (lastFirst.size() < size) {
+					lastFirst.add(id);
+				} else if (this.byName.compare(id, lastFirst.peek()) < 0) {
+					lastFirst.poll();
+					lastFirst.add(id);
+				}
+			}
+		}
+		final int[] ids = Arrays.copyOf(this.ids, this.ids.length + size);
+		for (int i = ids.length - 1; i >= this.ids.length; i--) {
+			final int id = lastFirst.poll();
+			ids[i] = id;
+			this.skipped[id] = true;
+		}
+		this.ids = ids;
+		this.remaining -= size;
+	}
+
+	private String getName(final int id) {
+		return StringUtils.defaultString(this.index.get(id).getName());
+	}
+}
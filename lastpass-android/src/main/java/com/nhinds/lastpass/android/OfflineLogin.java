@@ -0,0 +1,32 @@
+package com.nhinds.lastpass.android;
+
+import android.content.Context;
+
+import com.nhinds.lastpass.PasswordStore;
+
+/**
+ * Logs in without a network connection, by opening the last {@link SessionSnapshot}.
+ * <p>
+ * The snapshot's key is derived from the account and master password, and the snapshot keeps a check value derived
+ * alongside it, so the credentials are verified by deriving the key. Nothing else needs to be saved for offline logins.
+ */
+final class OfflineLogin {
+	private OfflineLogin() {
+	}
+
+	/**
+	 * Log in from the last session snapshot, if it was taken with the given credentials. This derives a key, so must
+	 * not be called from the UI thread.
+	 *
+	 * @return the password store from the last session snapshot, or null if it was taken with other credentials or
+	 *         there is no snapshot recent enough to open
+	 */
+	static PasswordStore login(final Context context, final String email, final Secret password) {
+		final Preferences preferences = new Preferences(context);
+		final long maxAgeMillis = preferences.getOfflineLoginMaxAgeMillis();
+		if (maxAgeMillis <= 0) {
+			return null;
+		}
+		return SessionSnapshot.restore(context, preferences, email, password, maxAgeMillis);
+	}
+}
@@ -0,0 +1,85 @@
+package com.nhinds.lastpass.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Splits work over a range of indexes into contiguous chunks, and runs them in parallel on a pool with a thread per
+ * core. The calling thread runs one of the chunks itself, so work is never queued behind a busy pool with nothing
+ * running it.
+ */
+final class ParallelChunks {
+	/** The number of cores on this device */
+	static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	private static final ThreadPoolExecutor EXECUTOR;
+	static {
+		EXECUTOR = new ThreadPoolExecutor(PARALLELISM, PARALLELISM, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("parallel-chunk-%d").setDaemon(true).build());
+		EXECUTOR.allowCoreThreadTimeOut(true);
+	}
+
+	/** A chunk of work. Each chunk is run on a single thread, so may keep state which is not thread safe. */
+	interface Chunk {
+		void run(int from, int to);
+	}
+
+	private ParallelChunks() {
+	}
+
+	/**
+	 * Run the given work over the indexes {@code [0, count)}, returning once every chunk has completed
+	 *
+	 * @param count The number of indexes
+	 * @param parallelism The most chunks to split the work into
+	 * @param minChunkSize The fewest indexes worth running on another thread
+	 * @param chunk The work to run for each chunk
+	 * @throws RuntimeException if any chunk failed, once every chunk has completed
+	 */
+	static void run(final int count, final int parallelism, final int minChunkSize, final Chunk chunk) {
+		final int chunks = Math.max(1, Math.min(parallelism, count / Math.max(minChunkSize, 1)));
+		if (chunks == 1) {
+			chunk.run(0, count);
+			return;
+		}
+		final List<Future<?>> futures = new ArrayList<Future<?>>(chunks - 1);
+		for (int i = 1; i < chunks; i++) {
+			final int from = (int) ((long) count * i / chunks);
+			final int to = (int) ((long) count * (i + 1) / chunks);
+			futures.add(EXECUTOR.submit(new Runnable() {
+				@Override
+				public void run() {
+					chunk.run(from, to);
+				}
+			}));
+		}
+		Throwable failure = null;
+		try {
+			chunk.run(0, count / chunks);
+		} catch (final RuntimeException e) {
+			failure = e;
+		}
+		// Wait for every chunk even if one has failed, so no chunk is still running once this returns
+		for (final Future<?> future : futures) {
+			try {
+				Uninterruptibles.getUninterruptibly(future);
+			} catch (final ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			}
+		}
+		if (failure != null) {
+			throw Throwables.propagate(failure);
+		}
+	}
+}
@@ -1,78 +1,215 @@
 package com.nhinds.lastpass.android;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.content.Context;
+import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.TextView;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.nhinds.lastpass.PasswordInfo;
 
-public class PasswordInfoListAdapter extends ArrayAdapter<PasswordInfo> {
+/**
+ * Adapter for the password popup, showing the passwords recently picked in the current application first, then the
+ * matching passwords and then the other passwords, each under a section header.
+ * <p>
+ * The visible rows are kept in a {@link PasswordListModel} which is only rebuilt when the filter changes, and rows are
+ * bound through cached view holders, so binding a row does not allocate. An adapter can be reused for every
+ * application while its index is current, with {@link #setMatchingPasswords(Collection, int[])}.
+ */
+public class PasswordInfoListAdapter extends BaseAdapter {
+	private static final int VIEW_TYPE_HEADER = 0;
+	private static final int VIEW_TYPE_PASSWORD = 1;
+
+	/** Sorts indexes by name off the UI thread, so the popup can be shown before the sort has finished */
+	private static final ExecutorService SORT_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("popup-sort-%d").setDaemon(true).build());
 
-	private final Collection<? extends PasswordInfo> matchingPasswords;
 	private final LayoutInflater layoutInflater;
+	private final PasswordSearchIndex searchIndex;
+	private final PasswordListModel model;
+	private final Handler handler = new Handler();
+	private boolean pageRequested;
 
-	public PasswordInfoListAdapter(Context context, Collection<? extends PasswordInfo> allPasswords,
-			Collection<? extends PasswordInfo> matchingPasswords) {
-		super(context, 0, new ArrayList<PasswordInfo>(allPasswords));
-		this.matchingPasswords = matchingPasswords;
+	public PasswordInfoListAdapter(Context context, PasswordSearchIndex searchIndex,
+			Collection<? extends PasswordInfo> matchingPasswords, int[] recentIds) {
 		this.layoutInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-		sort(new BestMatchFirstComparator(matchingPasswords));
+		this.searchIndex = searchIndex;
+		this.model = new PasswordListModel(searchIndex);
+		setMatchingPasswords(matchingPasswords, recentIds);
+	}
+
+	/**
+	 * Change which passwords are shown first, clearing any filter. The passwords are only sorted by name once per
+	 * index, so this is a single pass over the passwords, and nothing is sorted if the matching passwords are the same
+	 * collection as before.
+	 * <p>
+	 * If the index has not been sorted yet, the index is sorted in the background. Until then the recent and matching
+	 * passwords are shown straight away, and the other passwords are selected a page at a time as the list is
+	 * scrolled, in the same order the sort will give them.
+	 *
+	 * @param matchingPasswords The passwords matching the current application
+	 * @param recentIds The ids of the passwords recently picked in the current application, to show before any others
+	 * @see PasswordListModel#setMatchingPasswords(Collection, int[])
+	 */
+	public void setMatchingPasswords(Collection<? extends PasswordInfo> matchingPasswords, int[] recentIds) {
+		if (this.model.setMatchingPasswords(matchingPasswords, recentIds)) {
+			sortInBackground();
+		}
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Show only the passwords whose name, username or URL contain the given text, keeping matching passwords first.
+	 *
+	 * @param query The text to search for. An empty query shows every password, with the recent passwords first.
+	 */
+	public void filter(CharSequence query) {
+		this.model.filter(query);
+		notifyDataSetChanged();
+	}
+
+	/** Select the next page of the window once the list has been laid out */
+	private void requestNextPage() {
+		if (this.pageRequested) {
+			return;
+		}
+		this.pageRequested = true;
+		this.handler.post(new Runnable() {
+			@Override
+			public void run() {
+				PasswordInfoListAdapter.this.pageRequested = false;
+				final long start = Metrics.startTimer();
+				// The index may have been sorted since, replacing the window
+				if (PasswordInfoListAdapter.this.model.selectNextPage()) {
+					Metrics.stopTimer("popup.selectPage", start);
+					notifyDataSetChanged();
+				}
+			}
+		});
+	}
+
+	private void sortInBackground() {
+		SORT_EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				final long start = Metrics.startTimer();
+				PasswordInfoListAdapter.this.searchIndex.getIdsByName();
+				Metrics.stopTimer("popup.sortByName", start);
+				PasswordInfoListAdapter.this.handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (PasswordInfoListAdapter.this.model.indexSorted()) {
+							notifyDataSetChanged();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public int getCount() {
+		return this.model.getCount();
+	}
+
+	/** @return the password at the given position, or null if the position is a section header */
+	@Override
+	public PasswordInfo getItem(int position) {
+		return this.model.getItem(position);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return this.model.getItemId(position);
+	}
+
+	@Override
+	public boolean hasStableIds() {
+		return true;
+	}
+
+	@Override
+	public int getViewTypeCount() {
+		return 2;
+	}
+
+	@Override
+	public int getItemViewType(int position) {
+		return this.model.isHeader(position) ? VIEW_TYPE_HEADER : VIEW_TYPE_PASSWORD;
+	}
+
+	@Override
+	public boolean areAllItemsEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isEnabled(int position) {
+		return !this.model.isHeader(position);
 	}
 
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
+		if (this.model.isHeader(position)) {
+			final TextView heading;
+			if (convertView == null) {
+				heading = (TextView) this.layoutInflater.inflate(R.layout.password_popup_header, parent, false);
+			} else {
+				heading = (TextView) convertView;
+			}
+			heading.setText(getHeaderText(this.model.getHeader(position)));
+			return heading;
+		}
+
 		final View view;
+		final PasswordViewHolder holder;
 		if (convertView == null) {
 			view = this.layoutInflater.inflate(R.layout.password_popup_text, parent, false);
+			holder = new PasswordViewHolder(view);
+			view.setTag(holder);
 		} else {
 			view = convertView;
+			holder = (PasswordViewHolder) view.getTag();
 		}
 
-		final PasswordInfo item = getItem(position);
-		final TextView labelText = (TextView) view.findViewById(R.id.password_label);
-		labelText.setText(item.getName());
-		final TextView usernameText = (TextView) view.findViewById(R.id.password_username_label);
-		usernameText.setText(item.getUsername());
-
-		TextView heading = (TextView) view.findViewById(R.id.password_label_separator);
-		if (position == 0 || position == this.matchingPasswords.size()) {
-			heading.setVisibility(View.VISIBLE);
-			if (this.matchingPasswords.isEmpty()) {
-				heading.setText(R.string.all_passwords);
-			} else if (position == 0) {
-				heading.setText(R.string.matching_passwords);
-			} else {
-				heading.setText(R.string.other_passwords);
-			}
-		} else {
-			heading.setVisibility(View.GONE);
+		if (this.model.needsNextPage(position)) {
+			requestNextPage();
 		}
+		final PasswordInfo item = this.model.getItem(position);
+		holder.labelText.setText(item.getName());
+		holder.usernameText.setText(item.getUsername());
 		return view;
 	}
 
-	private static class BestMatchFirstComparator implements Comparator<PasswordInfo> {
-		private final Collection<? extends PasswordInfo> bestMatches;
-
-		public BestMatchFirstComparator(Collection<? extends PasswordInfo> bestMatches) {
-			this.bestMatches = bestMatches;
+	private static int getHeaderText(final int header) {
+		switch (header) {
+		case PasswordListModel.HEADER_ALL:
+			return R.string.all_passwords;
+		case PasswordListModel.HEADER_MATCHING:
+			return R.string.matching_passwords;
+		case PasswordListModel.HEADER_OTHER:
+			return R.string.other_passwords;
+		case PasswordListModel.HEADER_RECENT:
+			return R.string.recent_passwords;
+		default:
+			throw new IllegalArgumentException("Unknown header " + header);
 		}
+	}
 
-		@Override
-		public int compare(PasswordInfo lhs, PasswordInfo rhs) {
-			boolean lhsMatches = this.bestMatches.contains(lhs);
-			boolean rhsMatches = this.bestMatches.contains(rhs);
-			if (lhsMatches != rhsMatches) {
-				return lhsMatches ? -1 : 1;
-			}
-			return lhs.getName().compareToIgnoreCase(rhs.getName());
-		}
+	private static class PasswordViewHolder {
+		final TextView labelText;
+		final TextView usernameText;
 
+		PasswordViewHolder(final View view) {
+			this.labelText = (TextView) view.findViewById(R.id.password_label);
+			this.usernameText = (TextView) view.findViewById(R.id.password_username_label);
+		}
 	}
 }
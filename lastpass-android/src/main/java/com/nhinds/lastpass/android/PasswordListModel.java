@@ -0,0 +1,245 @@
+package com.nhinds.lastpass.android;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.apache.commons.lang.ArrayUtils;
+
+import com.nhinds.lastpass.PasswordInfo;
+
+/**
+ * The rows of the password popup: the passwords recently picked in the current application first, then the matching
+ * passwords and then the other passwords, each under a section header.
+ * <p>
+ * The rows are kept as a flat model of header and password positions which is only rebuilt when the filter changes, so
+ * reading a row does not allocate. The model holds nothing from the Android framework; {@link PasswordInfoListAdapter}
+ * binds it to views, and decides when the work it asks for runs.
+ */
+final class PasswordListModel {
+	/* Header positions are stored in the flat model as negative values, which double as their stable ids */
+	static final int HEADER_ALL = -1;
+	static final int HEADER_MATCHING = -2;
+	static final int HEADER_OTHER = -3;
+	static final int HEADER_RECENT = -4;
+
+	/** The number of passwords selected at a time while the index is being sorted, a few screens' worth */
+	static final int PAGE_SIZE = 50;
+
+	private final PasswordSearchIndex searchIndex;
+
+	private Collection<? extends PasswordInfo> matchingPasswords;
+	private int[] recentIds;
+	private int totalMatchingCount;
+	private PasswordSearch search;
+	/* While the index is being sorted, the matching ids in name order and a window over the other ids */
+	private int[] matchingIds;
+	private NameWindow window;
+	private String query = "";
+
+	/** The ids of the visible passwords, in display order */
+	private int[] visibleIds;
+	/** For each position, the index into {@link #visibleIds} of the password shown there, or a negative header value */
+	private int[] positions;
+
+	PasswordListModel(final PasswordSearchIndex searchIndex) {
+		this.searchIndex = searchIndex;
+	}
+
+	/**
+	 * Change which passwords are shown first, clearing any filter. The passwords are only sorted by name once per
+	 * index, so this is a single pass over the passwords, and nothing is ordered again if the matching passwords are the
+	 * same collection as before.
+	 * <p>
+	 * If the index has not been sorted yet, the recent and matching passwords are shown straight away, and the other
+	 * passwords are selected a {@value #PAGE_SIZE} password page at a time with {@link #selectNextPage()}, in the same
+	 * order the sort will give them.
+	 *
+	 * @param matchingPasswords The passwords matching the current application
+	 * @param recentIds The ids of the passwords recently picked in the current application, to show before any others
+	 * @return true if the passwords were ordered before the index was sorted, in which case the caller should sort it
+	 *         and then call {@link #indexSorted()}
+	 */
+	boolean setMatchingPasswords(final Collection<? extends PasswordInfo> matchingPasswords, final int[] recentIds) {
+		this.recentIds = recentIds;
+		boolean needsSort = false;
+		if (matchingPasswords != this.matchingPasswords) {
+			this.matchingPasswords = matchingPasswords;
+			if (this.searchIndex.isSortedByName()) {
+				order();
+			} else {
+				orderWindow();
+				needsSort = true;
+			}
+		}
+		filter("");
+		return needsSort;
+	}
+
+	/**
+	 * Show only the passwords whose name, username or URL contain the given text, keeping matching passwords first.
+	 *
+	 * @param query The text to search for. An empty query shows every password, with the recent passwords first.
+	 */
+	void filter(final CharSequence query) {
+		this.query = query.toString();
+		setVisibleIds(this.search.search(this.query));
+	}
+
+	/**
+	 * Replace the window with every password once the index has been sorted
+	 *
+	 * @return true if the rows changed
+	 */
+	boolean indexSorted() {
+		// The matching passwords may have been ordered again since, once the index was sorted
+		if (this.window == null) {
+			return false;
+		}
+		order();
+		filter(this.query);
+		return true;
+	}
+
+	/**
+	 * @return true if the row at the given position is close enough to the end of the window that the next page should
+	 *         be selected. Searches only cover the passwords selected so far, rather than selecting every page.
+	 */
+	boolean needsNextPage(final int position) {
+		final int index = this.positions[position];
+		return this.window != null && !this.window.isComplete() && this.query.length() == 0
+				&& index >= this.visibleIds.length - PAGE_SIZE / 2;
+	}
+
+	/**
+	 * Select the next page of the window, if the index has not been sorted since it was requested
+	 *
+	 * @return true if the rows changed
+	 */
+	boolean selectNextPage() {
+		if (this.window == null) {
+			return false;
+		}
+		this.window.selectNextPage(PAGE_SIZE);
+		updateWindow();
+		filter(this.query);
+		return true;
+	}
+
+	/** Order every password, matching passwords first */
+	private void order() {
+		final boolean[] matching = getMatching();
+		final int[] idsByName = this.searchIndex.getIdsByName();
+		final int[] orderedIds = new int[idsByName.length];
+		this.totalMatchingCount = BestMatchFirstSorter.partition(idsByName, matching, orderedIds);
+		this.search = new PasswordSearch(this.searchIndex, orderedIds);
+		this.window = null;
+	}
+
+	/** @return whether each id is one of the matching passwords, indexed by id */
+	private boolean[] getMatching() {
+		final boolean[] matching = new boolean[this.searchIndex.size()];
+		for (final PasswordInfo passwordInfo : this.matchingPasswords) {
+			final int id = this.searchIndex.idOf(passwordInfo);
+			if (id >= 0) {
+				matching[id] = true;
+			}
+		}
+		return matching;
+	}
+
+	/**
+	 * Order the matching passwords, which are few enough to sort on the UI thread, followed by the first page of the
+	 * other passwords, until the index is sorted
+	 */
+	private void orderWindow() {
+		final boolean[] matching = getMatching();
+		final int[] ids = new int[this.matchingPasswords.size()];
+		int count = 0;
+		for (int id = 0; id < matching.length; id++) {
+			if (matching[id]) {
+				ids[count++] = id;
+			}
+		}
+		this.matchingIds = this.searchIndex.sortByName(Arrays.copyOf(ids, count));
+		this.totalMatchingCount = count;
+		this.window = new NameWindow(this.searchIndex, matching);
+		this.window.selectNextPage(PAGE_SIZE);
+		updateWindow();
+	}
+
+	private void updateWindow() {
+		final int[] windowIds = this.window.getIds();
+		final int[] orderedIds = Arrays.copyOf(this.matchingIds, this.matchingIds.length + windowIds.length);
+		System.arraycopy(windowIds, 0, orderedIds, this.matchingIds.length, windowIds.length);
+		this.search = new PasswordSearch(this.searchIndex, orderedIds);
+	}
+
+	private void setVisibleIds(final int[] results) {
+		// Recent passwords are only shown separately when the passwords aren't being filtered
+		final int recent = this.query.length() == 0 ? this.recentIds.length : 0;
+		final int[] ids = recent == 0 ? results : withRecentFirst(results);
+		// Results are in display order, so the matching passwords are all after the recent passwords
+		int matching = recent;
+		while (matching < ids.length && this.search.rankOf(ids[matching]) < this.totalMatchingCount) {
+			matching++;
+		}
+		final int[] positions = new int[ids.length + 3];
+		int position = 0;
+		if (recent > 0) {
+			positions[position++] = HEADER_RECENT;
+		}
+		for (int i = 0; i < ids.length; i++) {
+			if (i == recent && i < matching) {
+				positions[position++] = HEADER_MATCHING;
+			}
+			if (i == matching) {
+				positions[position++] = matching > 0 ? HEADER_OTHER : HEADER_ALL;
+			}
+			positions[position++] = i;
+		}
+		if (ids.length == 0) {
+			positions[position++] = HEADER_ALL;
+		}
+		this.visibleIds = ids;
+		this.positions = Arrays.copyOf(positions, position);
+	}
+
+	/** @return the recent ids followed by the given ids, without repeating the recent ids */
+	private int[] withRecentFirst(final int[] results) {
+		final int[] ids = new int[this.recentIds.length + results.length];
+		System.arraycopy(this.recentIds, 0, ids, 0, this.recentIds.length);
+		int count = this.recentIds.length;
+		for (final int id : results) {
+			if (!ArrayUtils.contains(this.recentIds, id)) {
+				ids[count++] = id;
+			}
+		}
+		return Arrays.copyOf(ids, count);
+	}
+
+	int getCount() {
+		return this.positions.length;
+	}
+
+	/** @return true if the given position is a section header rather than a password */
+	boolean isHeader(final int position) {
+		return this.positions[position] < 0;
+	}
+
+	/** @return the header at the given position, one of the {@code HEADER_} values */
+	int getHeader(final int position) {
+		return this.positions[position];
+	}
+
+	/** @return the password at the given position, or null if the position is a section header */
+	PasswordInfo getItem(final int position) {
+		final int index = this.positions[position];
+		return index < 0 ? null : this.searchIndex.get(this.visibleIds[index]);
+	}
+
+	/** @return a stable id for the given position: the id of its password, or the negative value of its header */
+	long getItemId(final int position) {
+		final int index = this.positions[position];
+		return index < 0 ? index : this.visibleIds[index];
+	}
+}
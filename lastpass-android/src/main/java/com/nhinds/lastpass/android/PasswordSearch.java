@@ -0,0 +1,86 @@
+package com.nhinds.lastpass.android;
+
+import java.util.Arrays;
+
+/**
+ * The state of a type-to-filter search over a {@link PasswordSearchIndex}, for one ordering of the passwords.
+ * <p>
+ * Results are always returned in the display order given at construction. When the new query contains the previous
+ * query, only the previous results are re-checked rather than going back to the whole index.
+ */
+class PasswordSearch {
+	private final PasswordSearchIndex index;
+	private final int[] orderedIds;
+	private final int[] rankById;
+
+	private String lastQuery = "";
+	private int[] lastResult;
+
+	/**
+	 * @param index
+	 *            The index to search
+	 * @param orderedIds
+	 *            The ids of every password to search, in the order results should be returned
+	 */
+	PasswordSearch(final PasswordSearchIndex index, final int[] orderedIds) {
+		this.index = index;
+		this.orderedIds = orderedIds;
+		this.rankById = new int[index.size()];
+		Arrays.fill(this.rankById, -1);
+		for (int rank = 0; rank < orderedIds.length; rank++) {
+			this.rankById[orderedIds[rank]] = rank;
+		}
+		this.lastResult = orderedIds;
+	}
+
+	/** @return the position of the given id in the display order */
+	int rankOf(final int id) {
+		return this.rankById[id];
+	}
+
+	/** @return the ids matching the given query, in display order */
+	int[] search(final String query) {
+		final String normalizedQuery = PasswordSearchIndex.normalize(query);
+		final int[] result;
+		if (normalizedQuery.length() == 0) {
+			result = this.orderedIds;
+		} else if (this.lastQuery.length() > 0 && normalizedQuery.contains(this.lastQuery)) {
+			// Narrowing the previous search - nothing outside the previous results can match
+			result = filter(this.lastResult, normalizedQuery);
+		} else {
+			final int[] candidates = this.index.candidates(normalizedQuery);
+			result = filter(candidates == null ? this.orderedIds : toDisplayOrder(candidates), normalizedQuery);
+		}
+		this.lastQuery = normalizedQuery;
+		this.lastResult = result;
+		return result;
+	}
+
+	private int[] toDisplayOrder(final int[] ids) {
+		final int[] ranks = new int[ids.length];
+		int count = 0;
+		for (final int id : ids) {
+			final int rank = this.rankById[id];
+			if (rank >= 0) {
+				ranks[count++] = rank;
+			}
+		}
+		Arrays.sort(ranks, 0, count);
+		final int[] ordered = new int[count];
+		for (int i = 0; i < count; i++) {
+			ordered[i] = this.orderedIds[ranks[i]];
+		}
+		return ordered;
+	}
+
+	private int[] filter(final int[] ids, final String normalizedQuery) {
+		final int[] matches = new int[ids.length];
+		int count = 0;
+		for (final int id : ids) {
+			if (this.index.matches(id, normalizedQuery)) {
+				matches[count++] = id;
+			}
+		}
+		return Arrays.copyOf(matches, count);
+	}
+}
@@ -0,0 +1,247 @@
+package com.nhinds.lastpass.android;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+
+import com.nhinds.lastpass.PasswordInfo;
+
+/**
+ * An n-gram index over the name, username and URL of every password in a store, used to filter the password popup as
+ * the user types.
+ * <p>
+ * The index is built once per {@link com.nhinds.lastpass.PasswordStore}. Each password is assigned an integer id, and
+ * every {@value #GRAM_LENGTH}-character substring of its searchable text maps to the (ascending) ids containing it.
+ * The n-gram postings are built with the index, which the keyboard builds in the background, so the first search long
+ * enough to use them doesn't build them on the UI thread.
+ */
+public class PasswordSearchIndex {
+	static final int GRAM_LENGTH = 3;
+
+	private final List<PasswordInfo> passwords;
+	private final String[] searchText;
+	private final Map<PasswordInfo, Integer> ids;
+	private final int[] keys;
+	private final Map<String, int[]> grams;
+	/** Published once sorted, so it can be checked without waiting for a sort in progress */
+	private volatile int[] idsByName;
+
+	public PasswordSearchIndex(final Collection<? extends PasswordInfo> passwords) {
+		this.passwords = Collections.unmodifiableList(new ArrayList<PasswordInfo>(passwords));
+		this.searchText = new String[this.passwords.size()];
+		this.ids = new HashMap<PasswordInfo, Integer>(this.passwords.size() * 2);
+		this.keys = new int[this.passwords.size()];
+		for (int id = 0; id < this.searchText.length; id++) {
+			final PasswordInfo passwordInfo = this.passwords.get(id);
+			this.searchText[id] = normalize(StringUtils.defaultString(passwordInfo.getName()) + '\n'
+					+ StringUtils.defaultString(passwordInfo.getUsername()) + '\n' + StringUtils.defaultString(passwordInfo.getUrl()));
+			this.ids.put(passwordInfo, id);
+			this.keys[id] = keyOf(passwordInfo);
+		}
+		this.grams = buildGrams(this.searchText);
+	}
+
+	/**
+	 * @return a key identifying the given password by its name, username and URL, which stays the same when the store
+	 *         is loaded again
+	 */
+	static int keyOf(final PasswordInfo passwordInfo) {
+		int key = StringUtils.defaultString(passwordInfo.getName()).hashCode();
+		key = 31 * key + StringUtils.defaultString(passwordInfo.getUsername()).hashCode();
+		return 31 * key + StringUtils.defaultString(passwordInfo.getUrl()).hashCode();
+	}
+
+	/** @return every password in the index, in id order */
+	public List<PasswordInfo> getPasswords() {
+		return this.passwords;
+	}
+
+	public int size() {
+		return this.passwords.size();
+	}
+
+	PasswordInfo get(final int id) {
+		return this.passwords.get(id);
+	}
+
+	/** @return the id of the given password, or -1 if it is not in this index */
+	int idOf(final PasswordInfo passwordInfo) {
+		final Integer id = this.ids.get(passwordInfo);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Find the passwords with the given {@link #keyOf(PasswordInfo) keys}
+	 *
+	 * @return the ids of the passwords with the given keys, in the order of the keys. Keys with no password in this
+	 *         index are skipped.
+	 */
+	int[] idsOfKeys(final int[] keys) {
+		final int[] ids = new int[keys.length];
+		Arrays.fill(ids, -1);
+		int found = 0;
+		for (int id = 0; id < this.keys.length && found < keys.length; id++) {
+			for (int i = 0; i < keys.length; i++) {
+				if (ids[i] < 0 && this.keys[id] == keys[i]) {
+					ids[i] = id;
+					found++;
+					break;
+				}
+			}
+		}
+		final int[] result = new int[found];
+		int count = 0;
+		for (final int id : ids) {
+			if (id >= 0) {
+				result[count++] = id;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return true if {@link #getIdsByName()} has already been sorted, so will return immediately. This never waits for
+	 *         a sort in progress, so may be called from the UI thread.
+	 */
+	boolean isSortedByName() {
+		return this.idsByName != null;
+	}
+
+	/**
+	 * @return every id, ordered by the name of its password with ids of equal names in ascending order. This is only
+	 *         sorted the first time it is needed, and may be sorted on a background thread.
+	 */
+	int[] getIdsByName() {
+		int[] idsByName = this.idsByName;
+		if (idsByName == null) {
+			synchronized (this) {
+				idsByName = this.idsByName;
+				if (idsByName == null) {
+					final int[] ids = new int[this.passwords.size()];
+					for (int id = 0; id < ids.length; id++) {
+						ids[id] = id;
+					}
+					idsByName = sortByName(ids);
+					this.idsByName = idsByName;
+				}
+			}
+		}
+		return idsByName;
+	}
+
+	/**
+	 * Sort ids by the names of their passwords, as {@link #getIdsByName()} orders them. Each name is converted to a
+	 * {@link CollationKey} once rather than being collated again on every comparison, and ids are sorted directly so
+	 * passwords which are equal to each other keep their own ids.
+	 *
+	 * @param ids The distinct ids to sort
+	 * @return the ids ordered by name, with ids of equal names in ascending order
+	 */
+	int[] sortByName(final int[] ids) {
+		final Collator collator = BestMatchFirstSorter.newCollator();
+		final CollationKey[] names = new CollationKey[size()];
+		final Integer[] sorted = new Integer[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			sorted[i] = ids[i];
+			names[ids[i]] = collator.getCollationKey(StringUtils.defaultString(get(ids[i]).getName()));
+		}
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer id1, final Integer id2) {
+				final int byName = names[id1].compareTo(names[id2]);
+				return byName != 0 ? byName : id1.compareTo(id2);
+			}
+		});
+		return ArrayUtils.toPrimitive(sorted);
+	}
+
+	/** @return true if the password with the given id contains the (already normalized) query */
+	boolean matches(final int id, final String normalizedQuery) {
+		return this.searchText[id].contains(normalizedQuery);
+	}
+
+	/**
+	 * Find the candidate ids which may contain the given query. Every candidate still needs to be checked with
+	 * {@link #matches(int, String)}.
+	 *
+	 * @param normalizedQuery
+	 *            The query, already passed through {@link #normalize(String)}
+	 * @return the ascending candidate ids, or null if the query is too short to narrow down using the index
+	 */
+	int[] candidates(final String normalizedQuery) {
+		if (normalizedQuery.length() < GRAM_LENGTH) {
+			return null;
+		}
+		// Any id containing the query contains all of its grams, so the rarest gram gives the smallest candidate set
+		int[] best = null;
+		for (int i = 0; i + GRAM_LENGTH <= normalizedQuery.length(); i++) {
+			final int[] posting = this.grams.get(normalizedQuery.substring(i, i + GRAM_LENGTH));
+			if (posting == null) {
+				return new int[0];
+			}
+			if (best == null || posting.length < best.length) {
+				best = posting;
+			}
+		}
+		return best;
+	}
+
+	private static Map<String, int[]> buildGrams(final String[] searchText) {
+		final Map<String, IntList> postings = new HashMap<String, IntList>();
+		final Set<String> entryGrams = new HashSet<String>();
+		for (int id = 0; id < searchText.length; id++) {
+			final String text = searchText[id];
+			entryGrams.clear();
+			for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+				final String gram = text.substring(i, i + GRAM_LENGTH);
+				if (entryGrams.add(gram)) {
+					IntList posting = postings.get(gram);
+					if (posting == null) {
+						posting = new IntList();
+						postings.put(gram, posting);
+					}
+					posting.add(id);
+				}
+			}
+		}
+		final Map<String, int[]> grams = new HashMap<String, int[]>(postings.size() * 2);
+		for (final Map.Entry<String, IntList> entry : postings.entrySet()) {
+			grams.put(entry.getKey(), entry.getValue().toArray());
+		}
+		return grams;
+	}
+
+	/** Normalize text for case-insensitive searching */
+	static String normalize(final String text) {
+		return text.toLowerCase();
+	}
+
+	/** Minimal growable int array to avoid boxing every posting */
+	private static class IntList {
+		private int[] values = new int[4];
+		private int size;
+
+		void add(final int value) {
+			if (this.size == this.values.length) {
+				this.values = Arrays.copyOf(this.values, this.size * 2);
+			}
+			this.values[this.size++] = value;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(this.values, this.size);
+		}
+	}
+}
@@ -1,12 +1,23 @@
 package com.nhinds.lastpass.android;
 
 import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.nhinds.lastpass.encryption.AES256EncryptionProvider;
 import com.nhinds.lastpass.encryption.EncryptionProvider;
 import com.nhinds.lastpass.encryption.KeyProvider;
@@ -23,44 +34,126 @@ public class Preferences {
 	
 	private static final String REMEMBERED_EMAIL_PREF = "REMEMBERED_EMAIL";
 	private static final String REMEMBERED_PASSWORD_PREF = "REMEMBERED_PASSWORD";
+	private static final String SESSION_SNAPSHOT_TTL_PREF = "SESSION_SNAPSHOT_TTL";
+	private static final String REFRESH_INTERVAL_PREF = "REFRESH_INTERVAL";
+	private static final String OFFLINE_LOGIN_MAX_AGE_PREF = "OFFLINE_LOGIN_MAX_AGE";
+	private static final String FAST_FILL_PREF = "FAST_FILL";
+
+	/** Default time a {@link SessionSnapshot} remains valid for: 12 hours */
+	private static final long DEFAULT_SESSION_SNAPSHOT_TTL_MILLIS = 12 * 60 * 60 * 1000L;
+	/** Default interval between background refreshes of the password store: 6 hours */
+	private static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 6 * 60 * 60 * 1000L;
+	/** Default age of the newest {@link SessionSnapshot} an offline login may open: 7 days */
+	private static final long DEFAULT_OFFLINE_LOGIN_MAX_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
 	
 	private static final KeyProvider KEY_PROVIDER = new PBKDF2SHA256KeyProvider();
 	private static final int KEY_ITERATIONS = 100;
+
+	/** Derived keys shared by every instance in this process, keyed by device id */
+	private static final ConcurrentMap<String, ListenableFuture<byte[]>> KEYS = new ConcurrentHashMap<String, ListenableFuture<byte[]>>();
+	private static final ExecutorService KEY_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("preferences-key-%d").setDaemon(true).build());
 	
 	private final Context context;
-	private EncryptionProvider encryptionProvider;
+	private SharedPreferences sharedPreferences;
 	
 	public Preferences(final Context context) {
 		this.context = context;
 	}
 	
-	private EncryptionProvider getEncryptionProvider() {
-		if (this.encryptionProvider == null) {
-			this.encryptionProvider = new AES256EncryptionProvider(getKey());
-		}
-		return this.encryptionProvider;
+	/** @return an encryption provider using the device-bound key for this process */
+	EncryptionProvider getEncryptionProvider() {
+		return new AES256EncryptionProvider(getKey());
 	}
 	
-	private byte[] getKey() {
-		String deviceId = LastPassDeviceId.get(context);
+	/** @return the device-bound key for this process, waiting for it to be derived if it has not been derived yet */
+	byte[] getKey() {
 		try {
-			return KEY_PROVIDER.getKey(deviceId, deviceId, KEY_ITERATIONS);
-		} catch (GeneralSecurityException e) {
-			throw new RuntimeException("Error generating key", e);
+			return loadKey().get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted generating key", e);
+		} catch (final ExecutionException e) {
+			throw new RuntimeException("Error generating key", e.getCause());
+		}
+	}
+
+	/**
+	 * Start deriving the key used to encrypt remembered values in the background, if it has not already been derived in
+	 * this process.
+	 * 
+	 * @return a future which completes once {@link #getRememberedPassword()} and the setters will no longer block on key
+	 *         derivation
+	 */
+	public ListenableFuture<?> loadKeyAsync() {
+		return loadKey();
+	}
+
+	private ListenableFuture<byte[]> loadKey() {
+		final String deviceId = LastPassDeviceId.get(this.context);
+		ListenableFuture<byte[]> key = KEYS.get(deviceId);
+		if (key == null) {
+			final ListenableFutureTask<byte[]> task = ListenableFutureTask.create(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws GeneralSecurityException {
+					final long start = Metrics.startTimer();
+					try {
+						return KEY_PROVIDER.getKey(deviceId, deviceId, KEY_ITERATIONS);
+					} finally {
+						Metrics.stopTimer("preferences.deriveKey", start);
+					}
+				}
+			});
+			// A failed derivation is forgotten, so the next caller tries again rather than getting the same failure
+			Futures.addCallback(task, new FutureCallback<byte[]>() {
+				@Override
+				public void onSuccess(final byte[] result) {
+					// nothing to do
+				}
+
+				@Override
+				public void onFailure(final Throwable t) {
+					LOGGER.warn("Error deriving preferences key", t);
+					KEYS.remove(deviceId, task);
+				}
+			});
+			key = KEYS.putIfAbsent(deviceId, task);
+			if (key == null) {
+				key = task;
+				KEY_EXECUTOR.execute(task);
+			}
 		}
+		return key;
+	}
+
+	/** @return true if the encryption key has already been derived, so reading remembered values will not block */
+	public boolean isKeyLoaded() {
+		return loadKeyAsync().isDone();
+	}
+
+	/** Discard every derived key held by this process. The key is derived again the next time it is needed. */
+	public static void invalidateKeys() {
+		KEYS.clear();
 	}
 
 	private SharedPreferences getPreferences() {
-		return this.context.getSharedPreferences(PREFERENCES_NAME, Activity.MODE_PRIVATE);
+		if (this.sharedPreferences == null) {
+			this.sharedPreferences = this.context.getSharedPreferences(PREFERENCES_NAME, Activity.MODE_PRIVATE);
+		}
+		return this.sharedPreferences;
 	}
 	
 	private String getPreference(String preference) {
 		return getPreferences().getString(preference, null);
 	}
+
+	private CredentialStore getCredentialStore() {
+		return CredentialStore.get(this.context, getPreferences(), REMEMBERED_EMAIL_PREF, REMEMBERED_PASSWORD_PREF);
+	}
 	
 	/** @return the remembered email for login, or null if the email is not set */
 	public String getRememberedEmail() {
-		return getPreference(REMEMBERED_EMAIL_PREF);
+		return getCredentialStore().getEmail();
 	}
 
 	/** 
@@ -69,12 +162,33 @@ public class Preferences {
 	 * @param email The email to remember. May be null.
 	 */
 	public void setRememberedEmail(final String email) {
-		getPreferences().edit().putString(REMEMBERED_EMAIL_PREF, email).apply();
+		getCredentialStore().setEmail(email);
 	}
 	
-	/** @return the remembered password for login, or null if the password is not set */
-	public String getRememberedPassword() {
-		return decrypt(getPreference(REMEMBERED_PASSWORD_PREF));
+	/** @return true if a password has been remembered for login. This does not require decrypting the password. */
+	public boolean hasRememberedPassword() {
+		return getCredentialStore().hasPassword();
+	}
+
+	/**
+	 * @return the remembered password for login, or null if the password is not set. The caller should wipe the password
+	 *         once it is no longer needed.
+	 */
+	public Secret getRememberedPassword() {
+		return getCredentialStore().getPassword(this);
+	}
+
+	/**
+	 * @return the remembered email and password for login, or null unless both are set. The caller should wipe the
+	 *         password once it is no longer needed.
+	 */
+	public RememberedCredentials getRememberedCredentials() {
+		final CredentialStore credentialStore = getCredentialStore();
+		synchronized (credentialStore) {
+			final String email = credentialStore.getEmail();
+			final Secret password = email == null ? null : credentialStore.getPassword(this);
+			return password == null ? null : new RememberedCredentials(email, password);
+		}
 	}
 
 	/** 
@@ -84,21 +198,22 @@ public class Preferences {
 	 *
 	 * @param password The encrypted password to remember. May be null.
 	 */
-	public void setRememberedPassword(final String password) {
-		getPreferences().edit().putString(REMEMBERED_PASSWORD_PREF, encrypt(password)).apply();
+	public void setRememberedPassword(final CharSequence password) {
+		getCredentialStore().setPassword(encrypt(password));
 	}
 
 	/**
 	 * Convenience method to set both the remembered email and password for login at once
 	 * 
 	 * @see #setRememberedEmail(String)
-	 * @see #setRememberedPassword(String)
+	 * @see #setRememberedPassword(CharSequence)
 	 */
-	public void setRememberedEmailAndPassword(final String email, final String password) {
-		getPreferences().edit().putString(REMEMBERED_EMAIL_PREF, email).putString(REMEMBERED_PASSWORD_PREF, encrypt(password)).apply();
+	public void setRememberedEmailAndPassword(final String email, final CharSequence password) {
+		getCredentialStore().setEmailAndPassword(email, encrypt(password));
 	}
 
-	private String decrypt(String preference) {
+	/** Decrypt a hex encoded value encrypted with the device-bound key */
+	String decrypt(String preference) {
 		if (preference == null)
 			return null;
 		try {
@@ -109,9 +224,82 @@ public class Preferences {
 		}
 	}
 
-	private String encrypt(String password) {
+	private String encrypt(CharSequence password) {
 		if (password == null)
 			return null;
-		return new String(Hex.encodeHex(getEncryptionProvider().encrypt(password)));
+		return new String(Hex.encodeHex(getEncryptionProvider().encrypt(password.toString())));
+	}
+
+	/** @return how long a {@link SessionSnapshot} may be restored for after it was taken, in milliseconds. 0 disables snapshots. */
+	public long getSessionSnapshotTtlMillis() {
+		return getPreferences().getLong(SESSION_SNAPSHOT_TTL_PREF, DEFAULT_SESSION_SNAPSHOT_TTL_MILLIS);
+	}
+
+	/**
+	 * Set how long a {@link SessionSnapshot} may be restored for after it was taken
+	 * 
+	 * @param ttlMillis The time to live in milliseconds, or 0 to disable snapshots
+	 */
+	public void setSessionSnapshotTtlMillis(final long ttlMillis) {
+		getPreferences().edit().putLong(SESSION_SNAPSHOT_TTL_PREF, ttlMillis).apply();
+	}
+
+	/** @return the interval between background refreshes of the password store, in milliseconds. 0 disables refreshing. */
+	public long getRefreshIntervalMillis() {
+		return getPreferences().getLong(REFRESH_INTERVAL_PREF, DEFAULT_REFRESH_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Set the interval between background refreshes of the password store
+	 * 
+	 * @param intervalMillis The interval in milliseconds, or 0 to disable background refreshes
+	 * @see VaultRefreshScheduler
+	 */
+	public void setRefreshIntervalMillis(final long intervalMillis) {
+		getPreferences().edit().putLong(REFRESH_INTERVAL_PREF, intervalMillis).apply();
+	}
+
+	/** @return the oldest a {@link SessionSnapshot} may be for an offline login to open it, in milliseconds. 0 disables offline logins. */
+	public long getOfflineLoginMaxAgeMillis() {
+		return getPreferences().getLong(OFFLINE_LOGIN_MAX_AGE_PREF, DEFAULT_OFFLINE_LOGIN_MAX_AGE_MILLIS);
+	}
+
+	/**
+	 * Set the oldest a {@link SessionSnapshot} may be for an offline login to open it
+	 * 
+	 * @param maxAgeMillis The maximum age in milliseconds, or 0 to disable offline logins
+	 * @see OfflineLogin
+	 */
+	public void setOfflineLoginMaxAgeMillis(final long maxAgeMillis) {
+		getPreferences().edit().putLong(OFFLINE_LOGIN_MAX_AGE_PREF, maxAgeMillis).apply();
+	}
+
+	/**
+	 * @return true if the keyboard should fill the only password matching an application straight away, instead of
+	 *         showing the password popup. Disabled by default.
+	 */
+	public boolean isFastFillEnabled() {
+		return getPreferences().getBoolean(FAST_FILL_PREF, false);
+	}
+
+	/**
+	 * Set whether the keyboard should fill the only password matching an application without showing the password popup
+	 * 
+	 * @param enabled true to fill the only matching password straight away
+	 */
+	public void setFastFillEnabled(final boolean enabled) {
+		getPreferences().edit().putBoolean(FAST_FILL_PREF, enabled).apply();
+	}
+
+	/** A remembered email and password, read together */
+	public static class RememberedCredentials {
+		public final String email;
+		/** The password, which the caller should wipe once it is no longer needed */
+		public final Secret password;
+
+		RememberedCredentials(final String email, final Secret password) {
+			this.email = email;
+			this.password = password;
+		}
 	}
 }
@@ -0,0 +1,92 @@
+package com.nhinds.lastpass.android;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * A secret, such as a password, held in a character array which can be wiped once the secret is no longer needed.
+ * <p>
+ * Unlike a {@link String}, the characters of a secret don't stay on the heap until they are garbage collected, and
+ * aren't copied when it is passed around. A secret can be passed anywhere a {@link CharSequence} is accepted, such as
+ * a text view, without creating a string. {@link #toString()} does create a string, so should only be used where a
+ * library requires one.
+ * <p>
+ * Secrets are not thread safe, and must not be used after they have been wiped.
+ */
+public final class Secret implements CharSequence {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final char[] chars;
+	private boolean wiped;
+
+	private Secret(final char[] chars) {
+		this.chars = chars;
+	}
+
+	/** @return a secret holding a copy of the given characters, or null if they are null */
+	public static Secret copyOf(final CharSequence chars) {
+		if (chars == null) {
+			return null;
+		}
+		final char[] copy = new char[chars.length()];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = chars.charAt(i);
+		}
+		return new Secret(copy);
+	}
+
+	/** Overwrite the characters of this secret. It may not be used afterwards. */
+	public void wipe() {
+		Arrays.fill(this.chars, '\0');
+		this.wiped = true;
+	}
+
+	/** Wipe the given secret, if it is not null */
+	public static void wipe(final Secret secret) {
+		if (secret != null) {
+			secret.wipe();
+		}
+	}
+
+	/** Add the UTF-8 encoding of this secret to the given digest, wiping the encoded bytes afterwards */
+	public void updateDigest(final MessageDigest digest) {
+		checkNotWiped();
+		final ByteBuffer encoded = UTF_8.encode(CharBuffer.wrap(this.chars));
+		digest.update(encoded.array(), encoded.arrayOffset(), encoded.limit());
+		Arrays.fill(encoded.array(), (byte) 0);
+	}
+
+	@Override
+	public int length() {
+		checkNotWiped();
+		return this.chars.length;
+	}
+
+	@Override
+	public char charAt(final int index) {
+		checkNotWiped();
+		return this.chars[index];
+	}
+
+	@Override
+	public CharSequence subSequence(final int start, final int end) {
+		checkNotWiped();
+		return new Secret(Arrays.copyOfRange(this.chars, start, end));
+	}
+
+	/** @return the secret as a string, which can't be wiped. Only use this where a library requires a string. */
+	@Override
+	public String toString() {
+		checkNotWiped();
+		return new String(this.chars);
+	}
+
+	private void checkNotWiped() {
+		if (this.wiped) {
+			throw new IllegalStateException("Secret has been wiped");
+		}
+	}
+}
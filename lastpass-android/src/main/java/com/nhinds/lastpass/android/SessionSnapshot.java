@@ -0,0 +1,267 @@
+package com.nhinds.lastpass.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nhinds.lastpass.PasswordStore;
+import com.nhinds.lastpass.android.SnapshotFile.CorruptSnapshotException;
+import com.nhinds.lastpass.android.SnapshotFile.SnapshotPasswordStore;
+
+/**
+ * An encrypted snapshot of a decrypted {@link PasswordStore}, kept in the cache directory so the keyboard can restore
+ * the store without logging in again after its process has been killed.
+ * <p>
+ * The snapshot is encrypted with a {@link SnapshotKey} derived from the master password, since it is kept for as long as
+ * an offline login may open it. It can only be restored by someone who knows the master password, such as the keyboard
+ * with the remembered password.
+ * <p>
+ * The snapshot is a {@link SnapshotFile}, which is memory mapped and only decrypts records as they are used. The
+ * restored store is a {@link DomainIndexedPasswordStore}, so the popup's {@link HostnameIndex} only decrypts the records
+ * which may be in the domain of an application.
+ */
+public class SessionSnapshot {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SessionSnapshot.class);
+
+	/** Fingerprint of the store in the snapshot saved or restored by this process, or null if there is none */
+	private static volatile String lastFingerprint;
+
+	/** Snapshots are saved and restored on their own thread, so neither delays a login or the keyboard */
+	private static final ListeningExecutorService SNAPSHOT_EXECUTOR = MoreExecutors.listeningDecorator(Executors
+			.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("session-snapshot-%d").setDaemon(true).build()));
+
+	private SessionSnapshot() {
+	}
+
+	/**
+	 * Compute a digest of the contents of a store, so a refreshed store can be compared to the last snapshot without
+	 * decrypting it
+	 */
+	public static String fingerprint(final PasswordStore passwordStore) {
+		return SnapshotFile.fingerprint(passwordStore);
+	}
+
+	/**
+	 * @return true if the given fingerprint matches the snapshot last saved or restored by this process, which means the
+	 *         store from that snapshot is still up to date
+	 */
+	public static boolean isUnchanged(final String fingerprint) {
+		return fingerprint.equals(lastFingerprint);
+	}
+
+	/**
+	 * {@link #save(Context, Preferences, PasswordStore, int, String, Secret) Save} a snapshot of the given store on the
+	 * snapshot thread. The password is copied, so the caller may wipe it once this returns.
+	 */
+	static void saveInBackground(final Context context, final Preferences preferences, final PasswordStore passwordStore,
+			final int session, final String email, final Secret masterPassword) {
+		final Secret passwordCopy = Secret.copyOf(masterPassword);
+		SNAPSHOT_EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					save(context, preferences, passwordStore, session, email, passwordCopy);
+				} finally {
+					passwordCopy.wipe();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Save a snapshot of the given store, replacing any existing snapshot. Errors are logged rather than thrown, since
+	 * a missing snapshot only means the next cold start has to log in again.
+	 * <p>
+	 * Snapshots are only written on the snapshot thread, since every snapshot is written to the same temporary file.
+	 *
+	 * @param session The {@link LoginCoordinator#getSession() session} the store was fetched in. Nothing is saved if the
+	 *            user has logged out since, so a login which was running when they did can't leave a snapshot behind.
+	 * @param email The email the store was fetched with
+	 * @param masterPassword The master password the store was fetched with, which the snapshot's key is derived from
+	 */
+	private static void save(final Context context, final Preferences preferences, final PasswordStore passwordStore,
+			final int session, final String email, final Secret masterPassword) {
+		if (getRetentionMillis(preferences) <= 0) {
+			return;
+		}
+		try {
+			final SnapshotKey key = SnapshotKey.generate(email, masterPassword, LastPassDeviceId.get(context));
+			// Write to a temporary file and rename it so a partially written snapshot is never read
+			final File snapshotFile = getSnapshotFile(context);
+			final File tempFile = new File(snapshotFile.getPath() + ".tmp");
+			final String fingerprint = SnapshotFile.write(tempFile, passwordStore, key, System.currentTimeMillis());
+			// Logging out ends the session before deleting the snapshot, so once the session has been checked here the
+			// snapshot can't be replaced until after this one has been deleted
+			synchronized (SessionSnapshot.class) {
+				if (!UserLoginTaskFactory.LOGINS.isCurrentSession(session)) {
+					LOGGER.debug("Logged out while saving session snapshot, discarding it");
+					tempFile.delete();
+					return;
+				}
+				if (!tempFile.renameTo(snapshotFile)) {
+					throw new IOException("Could not rename " + tempFile + " to " + snapshotFile);
+				}
+				lastFingerprint = fingerprint;
+			}
+		} catch (final GeneralSecurityException e) {
+			LOGGER.warn("Error deriving session snapshot key", e);
+		} catch (final JSONException e) {
+			LOGGER.warn("Error creating session snapshot", e);
+		} catch (final IOException e) {
+			LOGGER.warn("Error writing session snapshot", e);
+		}
+	}
+
+	/**
+	 * {@link #touch(Context, int) Renew} the snapshot on the snapshot thread, so it is never renewed while a snapshot is
+	 * being saved
+	 */
+	static void touchInBackground(final Context context, final int session) {
+		SNAPSHOT_EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				touch(context, session);
+			}
+		});
+	}
+
+	/**
+	 * Renew the snapshot after a refresh found the store {@link #isUnchanged(String) unchanged}, so it is kept as long as
+	 * a new snapshot would be without encrypting and writing the store again. Only the snapshot's header is rewritten.
+	 *
+	 * @param session The {@link LoginCoordinator#getSession() session} the store was refreshed in. Nothing is renewed if
+	 *            the user has logged out since.
+	 */
+	private static synchronized void touch(final Context context, final int session) {
+		final File snapshotFile = getSnapshotFile(context);
+		if (lastFingerprint == null || !snapshotFile.exists() || !UserLoginTaskFactory.LOGINS.isCurrentSession(session)) {
+			return;
+		}
+		try {
+			SnapshotFile.touch(snapshotFile, System.currentTimeMillis());
+		} catch (final CorruptSnapshotException e) {
+			LOGGER.warn("Discarding session snapshot", e);
+			delete(context);
+		} catch (final IOException e) {
+			LOGGER.warn("Error renewing session snapshot", e);
+		}
+	}
+
+	/**
+	 * Restore the last saved snapshot. Only the header, record table and metadata are read here; records are read and
+	 * decrypted as they are used. This derives the snapshot's key, so must not be called from the UI thread.
+	 *
+	 * @param email The email the snapshot was taken for
+	 * @param password The master password the snapshot's key was derived from
+	 * @return the restored store, or null if there is no snapshot, it has expired, it was taken with other credentials,
+	 *         or it could not be read
+	 */
+	public static PasswordStore restore(final Context context, final Preferences preferences, final String email,
+			final Secret password) {
+		return restore(context, preferences, email, password, preferences.getSessionSnapshotTtlMillis());
+	}
+
+	/**
+	 * {@link #restore(Context, Preferences, String, Secret) Restore} the last saved snapshot on the snapshot thread. The
+	 * password is copied, so the caller may wipe it once this returns.
+	 *
+	 * @return a future holding the restored store, or null if it could not be restored
+	 */
+	static ListenableFuture<PasswordStore> restoreInBackground(final Context context, final Preferences preferences,
+			final String email, final Secret masterPassword) {
+		final Secret passwordCopy = Secret.copyOf(masterPassword);
+		return SNAPSHOT_EXECUTOR.submit(new Callable<PasswordStore>() {
+			@Override
+			public PasswordStore call() {
+				try {
+					return restore(context, preferences, email, passwordCopy);
+				} finally {
+					passwordCopy.wipe();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Restore the last saved snapshot if it is no older than the given age
+	 *
+	 * @return the restored store, or null if there is no snapshot, it is too old, it was taken with other credentials,
+	 *         or it could not be read
+	 * @see #restore(Context, Preferences, String, Secret)
+	 */
+	static PasswordStore restore(final Context context, final Preferences preferences, final String email,
+			final Secret password, final long maxAgeMillis) {
+		final File snapshotFile = getSnapshotFile(context);
+		if (!snapshotFile.exists()) {
+			return null;
+		}
+		try {
+			final SnapshotFile snapshot = SnapshotFile.open(snapshotFile);
+			final long age = System.currentTimeMillis() - snapshot.getCreated();
+			if (age < 0 || age > getRetentionMillis(preferences)) {
+				LOGGER.debug("Session snapshot has expired, deleting it");
+				delete(context);
+				return null;
+			}
+			if (age > maxAgeMillis) {
+				// Still kept for offline logins
+				LOGGER.debug("Session snapshot is too old to restore");
+				return null;
+			}
+
+			final SnapshotKey key = snapshot.deriveKey(email, password, LastPassDeviceId.get(context));
+			if (key == null) {
+				// Kept, since this may just be a mistyped password
+				LOGGER.debug("Credentials do not match the session snapshot");
+				return null;
+			}
+			final SnapshotPasswordStore passwordStore = snapshot.read(key);
+			lastFingerprint = passwordStore.getFingerprint();
+			return passwordStore;
+		} catch (final CorruptSnapshotException e) {
+			LOGGER.warn("Discarding session snapshot", e);
+		} catch (final IOException e) {
+			LOGGER.warn("Error reading session snapshot", e);
+		} catch (final GeneralSecurityException e) {
+			LOGGER.warn("Error deriving session snapshot key", e);
+			return null;
+		} catch (final RuntimeException e) {
+			// Includes decryption failures, and metadata which has been changed
+			LOGGER.warn("Error decrypting session snapshot", e);
+		} catch (final JSONException e) {
+			LOGGER.warn("Error parsing session snapshot", e);
+		}
+		delete(context);
+		return null;
+	}
+
+	/** @return how long a snapshot is kept for: until it is too old to be restored, or to be opened by an offline login */
+	private static long getRetentionMillis(final Preferences preferences) {
+		return Math.max(preferences.getSessionSnapshotTtlMillis(), preferences.getOfflineLoginMaxAgeMillis());
+	}
+
+	/** Delete any saved snapshot */
+	public static synchronized void delete(final Context context) {
+		lastFingerprint = null;
+		final File snapshotFile = getSnapshotFile(context);
+		if (snapshotFile.exists() && !snapshotFile.delete()) {
+			LOGGER.warn("Could not delete session snapshot {}", snapshotFile);
+		}
+	}
+
+	private static File getSnapshotFile(final Context context) {
+		return new File(context.getCacheDir(), "session.dat");
+	}
+}
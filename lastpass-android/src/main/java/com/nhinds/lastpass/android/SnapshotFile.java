@@ -0,0 +1,503 @@
+package com.nhinds.lastpass.android;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.Files;
+import com.nhinds.lastpass.PasswordInfo;
+import com.nhinds.lastpass.PasswordStore;
+import com.nhinds.lastpass.android.AuthenticatedEncryptionProvider.AuthenticationFailedException;
+import com.nhinds.lastpass.encryption.EncryptionProvider;
+
+/**
+ * The file format of a {@link SessionSnapshot}, which doesn't depend on where the snapshot is kept or when it expires.
+ * <p>
+ * The snapshot is a versioned binary file which is memory mapped when opened, so only the parts which are used are
+ * read. It starts with a fixed size header holding the time the snapshot was taken (so an expired snapshot can be
+ * discarded without decrypting anything), the salt and check value of its key, and checksums of the rest of the header
+ * and the record table. The table holds the offset, length and checksum of each individually encrypted record, and a
+ * keyed hash of the registered domain of its URL, so the restored store is a {@link DomainIndexedPasswordStore} which
+ * only decrypts the records which may be in a domain. The records and metadata are authenticated as well as encrypted
+ * (see {@link AuthenticatedEncryptionProvider}), so a record which has been changed is rejected rather than read.
+ * <p>
+ * A record is only decrypted when one of its fields is first read, or when every password is first listed, in which
+ * case the records are decrypted in parallel. Its password is encrypted again inside the record so it is only decrypted
+ * when {@link PasswordInfo#getPassword()} is called. The restored store never holds passwords in plaintext.
+ */
+final class SnapshotFile {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotFile.class);
+
+	private static final int MAGIC = 0x4C505353; // "LPSS"
+	private static final int FORMAT_VERSION = 6;
+
+	/* Header fields, followed by a checksum of the header */
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_CREATED = 8;
+	private static final int HEADER_RECORD_COUNT = 16;
+	private static final int HEADER_TABLE_CHECKSUM = 20;
+	private static final int HEADER_METADATA_OFFSET = 24;
+	private static final int HEADER_METADATA_LENGTH = 28;
+	private static final int HEADER_METADATA_CHECKSUM = 32;
+	private static final int HEADER_KEY_SALT = 36;
+	private static final int HEADER_KEY_CHECK = HEADER_KEY_SALT + SnapshotKey.SALT_LENGTH;
+	private static final int HEADER_CHECKSUM = HEADER_KEY_CHECK + SnapshotKey.CHECK_LENGTH;
+	static final int HEADER_SIZE = HEADER_CHECKSUM + 4;
+
+	/* Record table entry fields */
+	private static final int ENTRY_OFFSET = 0;
+	private static final int ENTRY_LENGTH = 4;
+	private static final int ENTRY_CHECKSUM = 8;
+	private static final int ENTRY_DOMAIN_TAG = 12;
+	private static final int ENTRY_SIZE = 16;
+
+	/** The fewest records worth decrypting on another thread */
+	static final int MIN_RECORDS_PER_THREAD = 64;
+
+	private static final String NAME = "name";
+	private static final String USERNAME = "username";
+	private static final String PASSWORD = "password";
+	private static final String URL = "url";
+	private static final String FINGERPRINT = "fingerprint";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer snapshot;
+
+	private SnapshotFile(final ByteBuffer snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/** Compute a digest of the contents of a store, which is kept in its snapshot */
+	static String fingerprint(final PasswordStore passwordStore) {
+		final MessageDigest digest = newDigest();
+		for (final PasswordInfo passwordInfo : passwordStore.getPasswords()) {
+			updateDigest(digest, passwordInfo, passwordInfo.getPassword());
+		}
+		return new String(Hex.encodeHex(digest.digest()));
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static void updateDigest(final MessageDigest digest, final PasswordInfo passwordInfo, final String password) {
+		for (final String field : new String[] { passwordInfo.getName(), passwordInfo.getUsername(), password, passwordInfo.getUrl() }) {
+			if (field != null) {
+				digest.update(field.getBytes(UTF_8));
+			}
+			// Separate fields (and distinguish null from empty) so different stores can't produce the same input
+			digest.update(field == null ? (byte) 0 : (byte) 1);
+		}
+	}
+
+	/**
+	 * Write a snapshot of the given store to the given file, replacing its contents. This encrypts the whole store, so
+	 * should not be called from the UI thread.
+	 *
+	 * @param created The time the snapshot was taken, in milliseconds since the epoch
+	 * @return the {@link #fingerprint(PasswordStore) fingerprint} of the store
+	 */
+	static String write(final File file, final PasswordStore passwordStore, final SnapshotKey key, final long created)
+			throws IOException, JSONException {
+		final EncryptionProvider encryptionProvider = key.newEncryptionProvider();
+		final DomainTagger domainTagger = new DomainTagger(key.getDomainTagKey());
+		final MessageDigest digest = newDigest();
+
+		final Collection<? extends PasswordInfo> passwordInfos = passwordStore.getPasswords();
+		final List<byte[]> records = new ArrayList<byte[]>(passwordInfos.size());
+		final ByteBuffer table = ByteBuffer.allocate(passwordInfos.size() * ENTRY_SIZE);
+		for (final PasswordInfo passwordInfo : passwordInfos) {
+			final String password = passwordInfo.getPassword();
+			updateDigest(digest, passwordInfo, password);
+			final JSONObject record = new JSONObject().put(NAME, passwordInfo.getName())
+					.put(USERNAME, passwordInfo.getUsername()).put(URL, passwordInfo.getUrl())
+					.put(PASSWORD, password == null ? null : new String(Hex.encodeHex(encryptionProvider.encrypt(password))));
+			final byte[] encryptedRecord = encryptionProvider.encrypt(record.toString());
+			// Offsets are filled in once the size of everything before the records is known
+			table.putInt(0).putInt(encryptedRecord.length).putInt(checksum(encryptedRecord))
+					.putInt(domainTagger.tag(HostnameIndex.getHost(passwordInfo.getUrl())));
+			records.add(encryptedRecord);
+		}
+		final String fingerprint = new String(Hex.encodeHex(digest.digest()));
+		final byte[] metadata = encryptionProvider.encrypt(new JSONObject().put(FINGERPRINT, fingerprint).toString());
+
+		int offset = HEADER_SIZE + table.capacity() + metadata.length;
+		for (int i = 0; i < records.size(); i++) {
+			table.putInt(i * ENTRY_SIZE + ENTRY_OFFSET, offset);
+			offset += records.get(i).length;
+		}
+
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(HEADER_MAGIC, MAGIC).putInt(HEADER_VERSION, FORMAT_VERSION).putLong(HEADER_CREATED, created)
+				.putInt(HEADER_RECORD_COUNT, records.size()).putInt(HEADER_TABLE_CHECKSUM, checksum(table.array()))
+				.putInt(HEADER_METADATA_OFFSET, HEADER_SIZE + table.capacity())
+				.putInt(HEADER_METADATA_LENGTH, metadata.length).putInt(HEADER_METADATA_CHECKSUM, checksum(metadata));
+		header.position(HEADER_KEY_SALT);
+		header.put(key.getSalt()).put(key.getCheck());
+		header.putInt(HEADER_CHECKSUM, checksum(header.array(), HEADER_CHECKSUM));
+
+		final ByteBuffer snapshot = ByteBuffer.allocate(offset);
+		snapshot.put(header.array()).put(table.array()).put(metadata);
+		for (final byte[] record : records) {
+			snapshot.put(record);
+		}
+		Files.write(snapshot.array(), file);
+		return fingerprint;
+	}
+
+	/**
+	 * Change the time the snapshot in the given file was taken, so a snapshot of a store which hasn't changed is kept as
+	 * long as a new one would be. Only the header is rewritten; if that is interrupted, the header checksum no longer
+	 * matches and the snapshot is discarded when it is next opened.
+	 *
+	 * @param created The new time the snapshot was taken, in milliseconds since the epoch
+	 */
+	static void touch(final File file, final long created) throws IOException, CorruptSnapshotException {
+		if (!file.exists()) {
+			// Opening the file for writing would create it
+			throw new FileNotFoundException(file.toString());
+		}
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			final byte[] header = new byte[HEADER_SIZE];
+			if (randomAccessFile.read(header) != HEADER_SIZE) {
+				throw new CorruptSnapshotException("Session snapshot header is truncated");
+			}
+			checkHeader(ByteBuffer.wrap(header));
+			ByteBuffer.wrap(header).putLong(HEADER_CREATED, created).putInt(HEADER_CHECKSUM, checksum(header, HEADER_CHECKSUM));
+			randomAccessFile.seek(0);
+			randomAccessFile.write(header);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/** Open the snapshot in the given file, checking its header. Nothing else is read until it is used. */
+	static SnapshotFile open(final File file) throws IOException, CorruptSnapshotException {
+		final ByteBuffer snapshot = map(file);
+		checkHeader(snapshot);
+		return new SnapshotFile(snapshot);
+	}
+
+	private static void checkHeader(final ByteBuffer snapshot) throws CorruptSnapshotException {
+		final byte[] header = read(snapshot, 0, HEADER_SIZE);
+		if (snapshot.getInt(HEADER_MAGIC) != MAGIC) {
+			throw new CorruptSnapshotException("Not a session snapshot");
+		}
+		if (snapshot.getInt(HEADER_VERSION) != FORMAT_VERSION) {
+			throw new CorruptSnapshotException("Unsupported session snapshot version " + snapshot.getInt(HEADER_VERSION));
+		}
+		if (snapshot.getInt(HEADER_CHECKSUM) != checksum(header, HEADER_CHECKSUM)) {
+			throw new CorruptSnapshotException("Session snapshot header is corrupt");
+		}
+	}
+
+	/** @return the time the snapshot was taken, in milliseconds since the epoch */
+	long getCreated() {
+		return this.snapshot.getLong(HEADER_CREATED);
+	}
+
+	/**
+	 * Derive the key of this snapshot from the given credentials. This derives a key, so must not be called from the UI
+	 * thread.
+	 *
+	 * @param deviceId The {@link LastPassDeviceId device id} of this device
+	 * @return the key, or null if the snapshot was taken with other credentials or on another device
+	 */
+	SnapshotKey deriveKey(final String email, final Secret password, final String deviceId)
+			throws GeneralSecurityException, CorruptSnapshotException {
+		final SnapshotKey key = SnapshotKey.derive(email, password, deviceId,
+				read(this.snapshot, HEADER_KEY_SALT, SnapshotKey.SALT_LENGTH));
+		return key.matches(read(this.snapshot, HEADER_KEY_CHECK, SnapshotKey.CHECK_LENGTH)) ? key : null;
+	}
+
+	/**
+	 * Read the record table and metadata of this snapshot. Records are read and decrypted as they are used.
+	 *
+	 * @param key The key {@link #deriveKey(String, Secret, String) derived} for this snapshot
+	 * @throws RuntimeException if the metadata can't be decrypted, or has been changed
+	 */
+	SnapshotPasswordStore read(final SnapshotKey key) throws CorruptSnapshotException, JSONException {
+		final int recordCount = this.snapshot.getInt(HEADER_RECORD_COUNT);
+		if (recordCount < 0 || recordCount > (this.snapshot.capacity() - HEADER_SIZE) / ENTRY_SIZE) {
+			throw new CorruptSnapshotException("Session snapshot record count " + recordCount + " is out of range");
+		}
+		final byte[] table = read(this.snapshot, HEADER_SIZE, recordCount * ENTRY_SIZE);
+		if (this.snapshot.getInt(HEADER_TABLE_CHECKSUM) != checksum(table)) {
+			throw new CorruptSnapshotException("Session snapshot record table is corrupt");
+		}
+		final byte[] metadata = read(this.snapshot, this.snapshot.getInt(HEADER_METADATA_OFFSET),
+				this.snapshot.getInt(HEADER_METADATA_LENGTH));
+		if (this.snapshot.getInt(HEADER_METADATA_CHECKSUM) != checksum(metadata)) {
+			throw new CorruptSnapshotException("Session snapshot metadata is corrupt");
+		}
+		final String fingerprint = new JSONObject(key.newEncryptionProvider().decrypt(metadata)).optString(FINGERPRINT, null);
+		return new SnapshotPasswordStore(this.snapshot, ByteBuffer.wrap(table), recordCount, key, fingerprint);
+	}
+
+	private static ByteBuffer map(final File file) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = randomAccessFile.getChannel();
+			// The mapping stays valid after the file is closed, or replaced by a newer snapshot
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/** Copy a region of the snapshot, without changing its position so it can be shared between threads */
+	private static byte[] read(final ByteBuffer snapshot, final int offset, final int length) throws CorruptSnapshotException {
+		if (offset < 0 || length < 0 || offset > snapshot.capacity() - length) {
+			throw new CorruptSnapshotException("Region " + offset + "+" + length + " is outside the session snapshot");
+		}
+		final ByteBuffer region = snapshot.duplicate();
+		region.position(offset);
+		final byte[] bytes = new byte[length];
+		region.get(bytes);
+		return bytes;
+	}
+
+	private static int checksum(final byte[] bytes) {
+		return checksum(bytes, bytes.length);
+	}
+
+	private static int checksum(final byte[] bytes, final int length) {
+		final CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+		return (int) crc.getValue();
+	}
+
+	static class CorruptSnapshotException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		CorruptSnapshotException(final String message) {
+			super(message);
+		}
+	}
+
+	/** Keyed hash of registered domains, so records can be found by host without storing their hosts in the clear */
+	private static class DomainTagger {
+		private final Mac mac;
+
+		DomainTagger(final byte[] key) {
+			try {
+				this.mac = Mac.getInstance("HmacSHA256");
+				this.mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			} catch (final GeneralSecurityException e) {
+				throw new IllegalStateException("HmacSHA256 is not available", e);
+			}
+		}
+
+		/** @return the tag of the registered domain of the given host, or 0 if there is no host */
+		synchronized int tag(final String host) {
+			if (host == null) {
+				return 0;
+			}
+			return ByteBuffer.wrap(this.mac.doFinal(HostnameIndex.getRegisteredDomain(host).getBytes(UTF_8))).getInt();
+		}
+	}
+
+	static class SnapshotPasswordStore implements DomainIndexedPasswordStore {
+		private final ByteBuffer snapshot;
+		private final ByteBuffer table;
+		/** Ciphers aren't thread safe, so records are decrypted with a provider per thread */
+		private final ThreadLocal<EncryptionProvider> encryptionProviders;
+		private final DomainTagger domainTagger;
+		private final String fingerprint;
+		private final List<SnapshotPasswordInfo> passwords;
+		private volatile boolean allRead;
+
+		SnapshotPasswordStore(final ByteBuffer snapshot, final ByteBuffer table, final int recordCount,
+				final SnapshotKey key, final String fingerprint) {
+			this.snapshot = snapshot;
+			this.table = table;
+			this.encryptionProviders = new ThreadLocal<EncryptionProvider>() {
+				@Override
+				protected EncryptionProvider initialValue() {
+					return key.newEncryptionProvider();
+				}
+			};
+			this.domainTagger = new DomainTagger(key.getDomainTagKey());
+			this.fingerprint = fingerprint;
+			final SnapshotPasswordInfo[] passwords = new SnapshotPasswordInfo[recordCount];
+			for (int i = 0; i < recordCount; i++) {
+				passwords[i] = new SnapshotPasswordInfo(this, i);
+			}
+			this.passwords = Collections.unmodifiableList(Arrays.asList(passwords));
+		}
+
+		/** @return the {@link SnapshotFile#fingerprint(PasswordStore) fingerprint} of the store the snapshot was taken of */
+		String getFingerprint() {
+			return this.fingerprint;
+		}
+
+		/**
+		 * Decrypts every record which has not been read yet, in parallel, since callers generally read them all. This
+		 * takes too long for the UI thread.
+		 */
+		@Override
+		public Collection<? extends PasswordInfo> getPasswords() {
+			if (!this.allRead) {
+				readAll(ParallelChunks.PARALLELISM);
+			}
+			return this.passwords;
+		}
+
+		/** Decrypt every record which has not been read yet, over at most the given number of threads */
+		void readAll(final int parallelism) {
+			final long start = Metrics.startTimer();
+			ParallelChunks.run(this.passwords.size(), parallelism, MIN_RECORDS_PER_THREAD, new ParallelChunks.Chunk() {
+				@Override
+				public void run(final int from, final int to) {
+					for (int i = from; i < to; i++) {
+						SnapshotPasswordStore.this.passwords.get(i).read();
+					}
+				}
+			});
+			this.allRead = true;
+			Metrics.stopTimer("sessionSnapshot.readAll", start);
+		}
+
+		@Override
+		public Collection<? extends PasswordInfo> getPasswordsByHostname(final String hostname) {
+			// Domain matching is done by HostnameIndex; this only needs to handle exact matches, which are always in the
+			// same registered domain
+			final List<PasswordInfo> matches = new ArrayList<PasswordInfo>();
+			for (final PasswordInfo passwordInfo : getPasswordsByRegisteredDomain(HostnameIndex.getRegisteredDomain(hostname))) {
+				if (hostname.equalsIgnoreCase(HostnameIndex.getHost(passwordInfo.getUrl()))) {
+					matches.add(passwordInfo);
+				}
+			}
+			return matches;
+		}
+
+		/** Only decrypts the records with the domain's tag, which are then checked since different domains may share one */
+		@Override
+		public Collection<? extends PasswordInfo> getPasswordsByRegisteredDomain(final String registeredDomain) {
+			final int domainTag = this.domainTagger.tag(registeredDomain);
+			final List<PasswordInfo> matches = new ArrayList<PasswordInfo>();
+			for (int i = 0; i < this.passwords.size(); i++) {
+				if (this.table.getInt(i * ENTRY_SIZE + ENTRY_DOMAIN_TAG) == domainTag) {
+					final PasswordInfo passwordInfo = this.passwords.get(i);
+					final String host = HostnameIndex.getHost(passwordInfo.getUrl());
+					if (host != null && registeredDomain.equalsIgnoreCase(HostnameIndex.getRegisteredDomain(host))) {
+						matches.add(passwordInfo);
+					}
+				}
+			}
+			return matches;
+		}
+
+		/** Read, verify and decrypt a record. A corrupt or changed record is logged and read as an empty record. */
+		JSONObject readRecord(final int index) {
+			final int entry = index * ENTRY_SIZE;
+			try {
+				final byte[] record = read(this.snapshot, this.table.getInt(entry + ENTRY_OFFSET),
+						this.table.getInt(entry + ENTRY_LENGTH));
+				if (checksum(record) != this.table.getInt(entry + ENTRY_CHECKSUM)) {
+					throw new CorruptSnapshotException("Session snapshot record " + index + " is corrupt");
+				}
+				return new JSONObject(decrypt(record));
+			} catch (final CorruptSnapshotException e) {
+				LOGGER.error("Error reading session snapshot record", e);
+			} catch (final AuthenticationFailedException e) {
+				LOGGER.error("Rejecting session snapshot record " + index, e);
+			} catch (final JSONException e) {
+				LOGGER.error("Error parsing session snapshot record", e);
+			}
+			return new JSONObject();
+		}
+
+		/** Decrypt with this thread's provider */
+		String decrypt(final byte[] encrypted) {
+			return this.encryptionProviders.get().decrypt(encrypted);
+		}
+	}
+
+	private static class SnapshotPasswordInfo implements PasswordInfo {
+		private final SnapshotPasswordStore passwordStore;
+		private final int index;
+
+		private boolean read;
+		private String name;
+		private String username;
+		private byte[] encryptedPassword;
+		private String url;
+
+		SnapshotPasswordInfo(final SnapshotPasswordStore passwordStore, final int index) {
+			this.passwordStore = passwordStore;
+			this.index = index;
+		}
+
+		synchronized void read() {
+			if (!this.read) {
+				final JSONObject record = this.passwordStore.readRecord(this.index);
+				this.name = record.optString(NAME, null);
+				this.username = record.optString(USERNAME, null);
+				this.url = record.optString(URL, null);
+				final String encryptedPassword = record.optString(PASSWORD, null);
+				try {
+					this.encryptedPassword = encryptedPassword == null ? null : Hex.decodeHex(encryptedPassword.toCharArray());
+				} catch (final DecoderException e) {
+					LOGGER.error("Error decoding session snapshot password", e);
+				}
+				this.read = true;
+			}
+		}
+
+		@Override
+		public String getName() {
+			read();
+			return this.name;
+		}
+
+		@Override
+		public String getUsername() {
+			read();
+			return this.username;
+		}
+
+		/** Decrypts the password on every call, so the plaintext is only held by the caller */
+		@Override
+		public String getPassword() {
+			read();
+			return this.encryptedPassword == null ? null : this.passwordStore.decrypt(this.encryptedPassword);
+		}
+
+		@Override
+		public String getUrl() {
+			read();
+			return this.url;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.nhinds.lastpass.android;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.nhinds.lastpass.encryption.EncryptionProvider;
+import com.nhinds.lastpass.encryption.KeyProvider;
+import com.nhinds.lastpass.encryption.PBKDF2SHA256KeyProvider;
+
+/**
+ * The key a {@link SessionSnapshot} is encrypted with, derived from the account and master password with a random salt
+ * kept in the snapshot. A snapshot is kept long enough to be opened by an offline login, so unlike the remembered
+ * password it is not encrypted with the device-bound key, which anyone in control of the device can derive.
+ * <p>
+ * The header of a snapshot holds everything needed to check a guess at the master password, so the key is derived with
+ * many iterations, and the salt is combined with the {@link LastPassDeviceId device id}, which is not in the snapshot.
+ * A snapshot copied off the device can't be attacked without also finding the id of the device it came from.
+ * <p>
+ * Separate keys for encryption, for authenticating what is encrypted, and for the domain tags of the records are derived
+ * from the password-derived key, so none can be found from another. A check value derived in the same way is kept alongside the salt, so a wrong
+ * password can be told apart from a corrupt snapshot without decrypting anything.
+ */
+final class SnapshotKey {
+	static final int SALT_LENGTH = 16;
+	static final int CHECK_LENGTH = 16;
+
+	private static final KeyProvider KEY_PROVIDER = new PBKDF2SHA256KeyProvider();
+	private static final int KEY_ITERATIONS = 100000;
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final byte[] salt;
+	private final byte[] encryptionKey;
+	private final byte[] authenticationKey;
+	private final byte[] domainTagKey;
+	private final byte[] check;
+
+	private SnapshotKey(final byte[] salt, final byte[] encryptionKey, final byte[] authenticationKey,
+			final byte[] domainTagKey, final byte[] check) {
+		this.salt = salt;
+		this.encryptionKey = encryptionKey;
+		this.authenticationKey = authenticationKey;
+		this.domainTagKey = domainTagKey;
+		this.check = check;
+	}
+
+	/**
+	 * Derive a key with a new salt, for a new snapshot. This derives a key, so must not be called from the UI thread.
+	 *
+	 * @param deviceId The {@link LastPassDeviceId device id} of this device
+	 */
+	static SnapshotKey generate(final String email, final Secret password, final String deviceId)
+			throws GeneralSecurityException {
+		final byte[] salt = new byte[SALT_LENGTH];
+		RANDOM.nextBytes(salt);
+		return derive(email, password, deviceId, salt);
+	}
+
+	/**
+	 * Derive the key of an existing snapshot. This derives a key, so must not be called from the UI thread.
+	 *
+	 * @param deviceId The {@link LastPassDeviceId device id} of this device
+	 */
+	static SnapshotKey derive(final String email, final Secret password, final String deviceId, final byte[] salt)
+			throws GeneralSecurityException {
+		// The key provider only accepts the password as a string, and salts the key with the username
+		final byte[] masterKey = KEY_PROVIDER.getKey(LoginCoordinator.getAccount(email) + ':' + deviceId + ':'
+				+ new String(Hex.encodeHex(salt)), password.toString(), KEY_ITERATIONS);
+		try {
+			return new SnapshotKey(salt.clone(), deriveSubKey(masterKey, "encryption"), deriveSubKey(masterKey, "authentication"),
+					deriveSubKey(masterKey, "domain tags"), Arrays.copyOf(deriveSubKey(masterKey, "check"), CHECK_LENGTH));
+		} finally {
+			Arrays.fill(masterKey, (byte) 0);
+		}
+	}
+
+	/** @return a key for the given purpose, which can't be used to find the key for any other purpose */
+	private static byte[] deriveSubKey(final byte[] masterKey, final String purpose) throws GeneralSecurityException {
+		final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(new SecretKeySpec(masterKey, MAC_ALGORITHM));
+		return mac.doFinal(purpose.getBytes(UTF_8));
+	}
+
+	byte[] getSalt() {
+		return this.salt.clone();
+	}
+
+	byte[] getCheck() {
+		return this.check.clone();
+	}
+
+	/** @return true if this key was derived from the same credentials as the key with the given check value */
+	boolean matches(final byte[] check) {
+		return MessageDigest.isEqual(this.check, check);
+	}
+
+	/** @return the key the domain tags of the records are computed with */
+	byte[] getDomainTagKey() {
+		return this.domainTagKey;
+	}
+
+	/**
+	 * @return a new provider encrypting and authenticating with this key, which rejects anything that has been changed.
+	 *         Providers are not thread safe, so each thread needs its own.
+	 */
+	EncryptionProvider newEncryptionProvider() {
+		return new AuthenticatedEncryptionProvider(this.encryptionKey, this.authenticationKey);
+	}
+}
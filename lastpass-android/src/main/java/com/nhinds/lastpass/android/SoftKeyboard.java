@@ -1,17 +1,24 @@
 package com.nhinds.lastpass.android;
 
-import org.apache.commons.lang.StringUtils;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.DialogInterface.OnDismissListener;
 import android.content.Intent;
 import android.inputmethodservice.InputMethodService;
-import android.text.InputType;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
 import android.view.WindowManager;
 import android.view.WindowManager.LayoutParams;
@@ -19,8 +26,16 @@ import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.TextView;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.nhinds.lastpass.PasswordInfo;
 import com.nhinds.lastpass.PasswordStore;
+import com.nhinds.lastpass.android.Preferences.RememberedCredentials;
 import com.nhinds.lastpass.android.UserLoginTaskFactory.LoginFailureReason;
 import com.nhinds.lastpass.android.UserLoginTaskFactory.UserLoginListener;
 import com.nhinds.lastpass.android.UserLoginTaskFactory.UserLoginResult;
@@ -29,23 +44,136 @@ public class SoftKeyboard extends InputMethodService {
 	private static final Logger LOGGER = LoggerFactory.getLogger(SoftKeyboard.class);
 	
 	private static final int AFTER_INSERTED_TEXT = 1;
+	/** The most recently picked passwords to show at the top of the popup */
+	private static final int RECENT_PICKS = 3;
+
+	/** Builds hostname and search indexes off the UI thread, since building one decrypts every password */
+	private static final ListeningExecutorService SEARCH_INDEX_EXECUTOR = MoreExecutors.listeningDecorator(Executors
+			.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("search-index-%d").setDaemon(true).build()));
 
 	private InputMethodManager mInputMethodManager;
 
 	private View mInputView;
 	private Preferences preferences;
+	private Handler mHandler;
+	/** Whether the session snapshot is being restored, so the popup is not requested again until it has been */
+	private boolean restoring;
+	/** Whether the popup will be shown once the search index has been built */
+	private boolean waitingForSearchIndex;
+	/** Fills the current editor */
+	private final FastFill.Target editorTarget = new FastFill.Target() {
+		@Override
+		public void fill(final PasswordInfo passwordInfo) {
+			SoftKeyboard.this.fill(passwordInfo);
+		}
+	};
+
+	/* The password popup is kept between editors, and recreated when the password store changes */
+	private AlertDialog popupDialog;
+	private PasswordInfoListAdapter popupAdapter;
+	private TextView popupTitleText;
+	private TextView popupSearchText;
+	private PasswordStore popupPasswordStore;
 
 	private static PasswordStore passwordStore;
+	/** Search index over {@link #passwordStore}, built in the background as soon as the store is set */
+	private static ListenableFuture<PasswordSearchIndex> searchIndex;
+	/** Hostname index over {@link #passwordStore}, built in the background before the search index */
+	private static ListenableFuture<HostnameIndex> hostnameIndex;
 
 	static void setPasswordStore(PasswordStore passwordStore) {
 		// TODO This sucks, why is this so difficult to accomplish in android?
 		SoftKeyboard.passwordStore = passwordStore;
+		// The hostname index is built first, since the popup's first lookup needs it
+		SoftKeyboard.hostnameIndex = passwordStore == null ? null : buildHostnameIndex(passwordStore);
+		SoftKeyboard.searchIndex = passwordStore == null ? null : buildSearchIndex(passwordStore);
 	}
 
-	static void logout() {
+	static void logout(Context context) {
 		assert passwordStore != null;
 		// TODO call a method to kill the session once this is implemented in lastpass-java
 		passwordStore = null;
+		// Supersede any login or refresh in progress first, so none of them can save or publish a store afterwards
+		UserLoginTaskFactory.LOGINS.loggedOut();
+		SessionSnapshot.delete(context);
+		FrecencyCache.get(context).clear();
+		VaultRefreshScheduler.cancel(context);
+		searchIndex = null;
+		hostnameIndex = null;
+		Preferences.invalidateKeys();
+		LastPassDeviceId.invalidate();
+	}
+
+	private static ListenableFuture<PasswordSearchIndex> buildSearchIndex(final PasswordStore store) {
+		return SEARCH_INDEX_EXECUTOR.submit(new Callable<PasswordSearchIndex>() {
+			@Override
+			public PasswordSearchIndex call() {
+				final long start = Metrics.startTimer();
+				try {
+					return new PasswordSearchIndex(store.getPasswords());
+				} finally {
+					Metrics.stopTimer("popup.buildSearchIndex", start);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the search index over the password store, or null if it is still being built. An index which could not be
+	 *         built is logged and built again.
+	 */
+	private static PasswordSearchIndex getSearchIndex() {
+		if (searchIndex != null && searchIndex.isDone()) {
+			try {
+				return Futures.getUnchecked(searchIndex);
+			} catch (final UncheckedExecutionException e) {
+				LOGGER.error("Error building the search index, building it again", e.getCause());
+				searchIndex = null;
+			}
+		}
+		if (searchIndex == null) {
+			searchIndex = buildSearchIndex(passwordStore);
+		}
+		return null;
+	}
+
+	private static ListenableFuture<HostnameIndex> buildHostnameIndex(final PasswordStore store) {
+		if (store instanceof DomainIndexedPasswordStore) {
+			// Only indexed as domains are looked up, so there is nothing to build
+			return Futures.immediateFuture(new HostnameIndex(store));
+		}
+		return SEARCH_INDEX_EXECUTOR.submit(new Callable<HostnameIndex>() {
+			@Override
+			public HostnameIndex call() {
+				final long start = Metrics.startTimer();
+				try {
+					return new HostnameIndex(store);
+				} finally {
+					Metrics.stopTimer("popup.buildHostnameIndex", start);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the passwords matching the given application, {@link HostnameIndex#scan(PasswordStore, String) scanning}
+	 *         the password store if the hostname index is still being built. An index which could not be built is logged
+	 *         and built again.
+	 */
+	private static Collection<? extends PasswordInfo> getPasswordsByPackage(final String packageName) {
+		if (hostnameIndex != null && hostnameIndex.isDone()) {
+			try {
+				return Futures.getUnchecked(hostnameIndex).getPasswordsByPackage(packageName);
+			} catch (final UncheckedExecutionException e) {
+				LOGGER.error("Error building the hostname index, building it again", e.getCause());
+				hostnameIndex = null;
+			}
+		}
+		if (hostnameIndex == null) {
+			hostnameIndex = buildHostnameIndex(passwordStore);
+		}
+		Metrics.increment("popup.hostnameScan");
+		return HostnameIndex.scan(passwordStore, HostnameIndex.getHostname(packageName));
 	}
 
 	@Override
@@ -53,6 +181,9 @@ public class SoftKeyboard extends InputMethodService {
 		super.onCreate();
 		this.mInputMethodManager = (InputMethodManager) getSystemService(INPUT_METHOD_SERVICE);
 		this.preferences = new Preferences(this);
+		this.mHandler = new Handler();
+		// Derive the key for the remembered password off the UI thread, ready for the first login
+		this.preferences.loadKeyAsync();
 	}
 
 	@Override
@@ -82,88 +213,250 @@ public class SoftKeyboard extends InputMethodService {
 		}
 	}
 
-	private void bing() {
-		if (passwordStore == null) {
-			String rememberedEmail = preferences.getRememberedEmail();
-			String rememberedPassword = preferences.getRememberedPassword();
-			if (rememberedEmail != null && rememberedPassword != null) {
-				UserLoginTaskFactory.create(rememberedEmail, rememberedPassword, getApplicationContext(), new UserLoginListener() {
-					
+	/**
+	 * Restore the session snapshot in the background, since its key is derived from the remembered password, and log in
+	 * with the remembered credentials if there is no snapshot to restore
+	 */
+	private void restoreOrLogin(final RememberedCredentials credentials) {
+		this.restoring = true;
+		final int session = UserLoginTaskFactory.LOGINS.getSession();
+		Futures.addCallback(SessionSnapshot.restoreInBackground(this, this.preferences, credentials.email, credentials.password),
+				new FutureCallback<PasswordStore>() {
 					@Override
-					public void loginCompleted(UserLoginResult result) {
-						if (result.passwordStore != null) {
-							setPasswordStore(result.passwordStore);
+					public void onSuccess(final PasswordStore restoredStore) {
+						SoftKeyboard.this.restoring = false;
+						if (!UserLoginTaskFactory.LOGINS.isCurrentSession(session)) {
+							LOGGER.debug("Logged out while restoring the session snapshot");
+							credentials.password.wipe();
+						} else if (restoredStore != null) {
+							LOGGER.debug("Restored password store from session snapshot");
+							credentials.password.wipe();
+							// A login may have completed in the meantime, with a newer store
+							if (passwordStore == null) {
+								setPasswordStore(restoredStore);
+							}
 							bing();
 						} else {
-							LOGGER.debug("Error logging in: {} ({})", result.failureReason, result.reasonString);
-							if (result.failureReason == LoginFailureReason.OTP)
-								switchToLoginActivity(LoginActivity.CACHED_OTP_LOGIN, null);
-							else
-								switchToLoginActivity(null, result.reasonString);
+							login(credentials);
 						}
 					}
-					
+
+					@Override
+					public void onFailure(final Throwable t) {
+						LOGGER.warn("Error restoring session snapshot", t);
+						onSuccess(null);
+					}
+				}, getHandlerExecutor());
+	}
+
+	/** Log in with the remembered credentials, wiping the remembered password once the login has its own copy */
+	private void login(final RememberedCredentials credentials) {
+		final UserLoginTaskFactory loginTaskFactory = UserLoginTaskFactory.create(credentials.email, credentials.password, false, getApplicationContext(), new UserLoginListener() {
+			
+			@Override
+			public void loginCompleted(UserLoginResult result) {
+				if (result.passwordStore != null) {
+					setPasswordStore(result.passwordStore);
+					bing();
+				} else if (result.failureReason == LoginFailureReason.CANCEL) {
+					// Cancelled by the user, or superseded by a login from the login activity
+					LOGGER.debug("Login cancelled");
+				} else {
+					LOGGER.debug("Error logging in: {} ({})", result.failureReason, result.reasonString);
+					if (result.failureReason == LoginFailureReason.OTP)
+						switchToLoginActivity(LoginActivity.CACHED_OTP_LOGIN, null);
+					else
+						switchToLoginActivity(null, result.reasonString);
+				}
+			}
+			
+			@Override
+			public void progressDialogCreated(ProgressDialog dialog) {
+				makeDialogWork(dialog);
+			}
+		});
+		credentials.password.wipe();
+		loginTaskFactory.loginWithoutOtp();
+	}
+
+	/** @return an executor which runs callbacks from background work on the main thread */
+	private Executor getHandlerExecutor() {
+		return new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				SoftKeyboard.this.mHandler.post(command);
+			}
+		};
+	}
+
+	private void bing() {
+		if (passwordStore == null) {
+			if (!preferences.isKeyLoaded()) {
+				LOGGER.trace("Waiting for the preferences key");
+				preferences.loadKeyAsync().addListener(new Runnable() {
 					@Override
-					public void progressDialogCreated(ProgressDialog dialog) {
-						makeDialogWork(dialog);
+					public void run() {
+						bing();
 					}
-				}).loginWithoutOtp();
+				}, getHandlerExecutor());
+				return;
+			}
+			if (this.restoring) {
+				LOGGER.trace("Waiting for the session snapshot");
+				return;
+			}
+			final RememberedCredentials credentials = preferences.getRememberedCredentials();
+			if (credentials != null) {
+				restoreOrLogin(credentials);
 			} else {
 				switchToLoginActivity(null, null);
 			}
 		} else {
-			final String hostname = getHostname();
-			final PasswordInfoListAdapter listAdapter = new PasswordInfoListAdapter(this, passwordStore.getPasswords(),
-					passwordStore.getPasswordsByHostname(hostname));
-
-			final AlertDialog dialog = new AlertDialog.Builder(this).setAdapter(listAdapter, new OnClickListener() {
+			final long popupStart = Metrics.startTimer();
+			final String editorPackage = getCurrentInputEditorInfo().packageName;
+			final Collection<? extends PasswordInfo> matchingPasswords = getPasswordsByPackage(editorPackage);
+			if (FastFill.fill(this.preferences.isFastFillEnabled(), matchingPasswords, this.editorTarget)) {
+				switchToLastInputMethod();
+				Metrics.stopTimer("fastFill", popupStart);
+				return;
+			}
+			final PasswordSearchIndex searchIndex = getSearchIndex();
+			if (searchIndex == null) {
+				showPopupWhenIndexed();
+				return;
+			}
+			// The recent picks are read before anything is sorted, so they can be shown while the index is sorted
+			final int[] recentIds = searchIndex.idsOfKeys(FrecencyCache.get(this).getTopKeys(editorPackage, RECENT_PICKS));
+			if (this.popupDialog == null || this.popupPasswordStore != passwordStore) {
+				createPopup(searchIndex, matchingPasswords, recentIds);
+			} else {
+				// The store hasn't changed since the last popup, so only rebind it to the current editor
+				Metrics.increment("popup.reused");
+				if (this.popupSearchText.length() > 0) {
+					this.popupSearchText.setText("");
+				}
+				this.popupAdapter.setMatchingPasswords(matchingPasswords, recentIds);
+				this.popupDialog.getListView().setSelection(0);
+			}
+			this.popupTitleText.setText(isPasswordInput() ? R.string.choose_password : R.string.choose_username);
+			makeDialogWork(this.popupDialog);
+			this.popupDialog.show();
+			Metrics.stopTimer("popup.show", popupStart);
+		}
+	}
 
-				@Override
-				public void onClick(DialogInterface dialog, int which) {
-					PasswordInfo passwordInfo = listAdapter.getItem(which);
-					final String text = isPasswordInput() ? passwordInfo.getPassword() : passwordInfo.getUsername();
-					getCurrentInputConnection().commitText(text, AFTER_INSERTED_TEXT);
+	/** Show the popup once the search index being built in the background is ready */
+	private void showPopupWhenIndexed() {
+		if (this.waitingForSearchIndex) {
+			return;
+		}
+		LOGGER.trace("Waiting for the search index");
+		this.waitingForSearchIndex = true;
+		final ListenableFuture<PasswordSearchIndex> index = searchIndex;
+		Futures.addCallback(index, new FutureCallback<PasswordSearchIndex>() {
+			@Override
+			public void onSuccess(final PasswordSearchIndex result) {
+				SoftKeyboard.this.waitingForSearchIndex = false;
+				// Not after logging out, which would start a login instead
+				if (passwordStore != null) {
+					bing();
 				}
-			}).create();
-			dialog.setCustomTitle(getTitleBar(dialog));
-			dialog.setOnDismissListener(new OnDismissListener() {
+			}
 
-				@Override
-				public void onDismiss(DialogInterface dialog) {
-					switchToLastInputMethod();
+			@Override
+			public void onFailure(final Throwable t) {
+				SoftKeyboard.this.waitingForSearchIndex = false;
+				// Not retried until the popup is next requested, so an index which can't be built isn't built forever
+				LOGGER.error("Error building the search index, not showing the popup", t);
+				if (searchIndex == index) {
+					searchIndex = null;
 				}
-			});
-			makeDialogWork(dialog);
-			dialog.getWindow().addFlags(WindowManager.LayoutParams.FLAG_ALT_FOCUSABLE_IM);
-			dialog.show();
-		}
+				switchToLastInputMethod();
+			}
+		}, getHandlerExecutor());
+	}
+
+	/** Create the popup for the current password store, replacing any popup created for an earlier store */
+	private void createPopup(final PasswordSearchIndex searchIndex, final Collection<? extends PasswordInfo> matchingPasswords,
+			final int[] recentIds) {
+		final PasswordInfoListAdapter listAdapter = new PasswordInfoListAdapter(this, searchIndex, matchingPasswords,
+				recentIds);
+
+		final AlertDialog dialog = new AlertDialog.Builder(this).setAdapter(listAdapter, new OnClickListener() {
+
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				fill(listAdapter.getItem(which));
+			}
+		}).create();
+		dialog.setCustomTitle(getTitleBar(dialog, listAdapter));
+		dialog.setOnDismissListener(new OnDismissListener() {
+
+			@Override
+			public void onDismiss(DialogInterface dialog) {
+				switchToLastInputMethod();
+			}
+		});
+		dialog.getWindow().addFlags(WindowManager.LayoutParams.FLAG_ALT_FOCUSABLE_IM);
+
+		this.popupDialog = dialog;
+		this.popupAdapter = listAdapter;
+		this.popupPasswordStore = passwordStore;
+	}
+
+	/** Commit the password or username from the given entry to the current editor, as appropriate for its input type */
+	private void fill(final PasswordInfo passwordInfo) {
+		final String text = isPasswordInput() ? passwordInfo.getPassword() : passwordInfo.getUsername();
+		getCurrentInputConnection().commitText(text, AFTER_INSERTED_TEXT);
+		FrecencyCache.get(this).recordPick(getCurrentInputEditorInfo().packageName, PasswordSearchIndex.keyOf(passwordInfo));
+	}
+
+	/** Drop the popup, so it no longer holds on to the password store it was created for */
+	private void discardPopup() {
+		this.popupDialog = null;
+		this.popupAdapter = null;
+		this.popupTitleText = null;
+		this.popupSearchText = null;
+		this.popupPasswordStore = null;
 	}
 
 	private void switchToLoginActivity(String action, String errorString) {
 		startActivity(new Intent(action, null, this, LoginActivity.class).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK).putExtra(LoginActivity.ERROR_EXTRA_KEY, errorString));
 	}
 	
-	private View getTitleBar(final AlertDialog dialog) {
+	private View getTitleBar(final AlertDialog dialog, final PasswordInfoListAdapter listAdapter) {
 		final View titleBar = getLayoutInflater().inflate(R.layout.password_titlebar, null);
-		if (!isPasswordInput()) {
-			final TextView titleText = (TextView) titleBar.findViewById(R.id.popup_title);
-			titleText.setText(R.string.choose_username);
-		}
+		this.popupTitleText = (TextView) titleBar.findViewById(R.id.popup_title);
 
 		final View logoutButton = titleBar.findViewById(R.id.logout_button);
 		logoutButton.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				logout();
+				logout(SoftKeyboard.this);
 				SoftKeyboard.this.preferences.setRememberedPassword(null);
 				dialog.cancel();
+				discardPopup();
 			}
 		});
-		return titleBar;
-	}
 
-	private String getHostname() {
-		return StringUtils.reverseDelimited(getCurrentInputEditorInfo().packageName, '.');
+		this.popupSearchText = (TextView) titleBar.findViewById(R.id.popup_search);
+		this.popupSearchText.addTextChangedListener(new TextWatcher() {
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {
+				listAdapter.filter(s);
+			}
+
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+				// nothing to do
+			}
+
+			@Override
+			public void afterTextChanged(Editable s) {
+				// nothing to do
+			}
+		});
+		return titleBar;
 	}
 
 	private void makeDialogWork(AlertDialog dialog) {
@@ -174,17 +467,11 @@ public class SoftKeyboard extends InputMethodService {
 		dialog.getWindow().setAttributes(attributes);
 	}
 
-	protected static boolean isPassword(int inputType) {
-		int variation = inputType & InputType.TYPE_MASK_VARIATION;
-		return variation == InputType.TYPE_TEXT_VARIATION_PASSWORD || variation == InputType.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD
-				|| variation == InputType.TYPE_TEXT_VARIATION_WEB_PASSWORD;
-	}
-
 	private void switchToLastInputMethod() {
 		this.mInputMethodManager.switchToLastInputMethod(getWindow().getWindow().getAttributes().token);
 	}
 
 	private boolean isPasswordInput() {
-		return isPassword(getCurrentInputEditorInfo().inputType);
+		return InputTypes.isPassword(getCurrentInputEditorInfo().inputType);
 	}
 }
@@ -1,15 +1,31 @@
 package com.nhinds.lastpass.android;
 
 import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
+import android.content.DialogInterface.OnCancelListener;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.nhinds.lastpass.GoogleAuthenticatorRequired;
 import com.nhinds.lastpass.LastPassException;
 import com.nhinds.lastpass.LastPassFactory;
@@ -23,9 +39,45 @@ import com.nhinds.lastpass.LastPass.ProgressStatus;
  */
 public class UserLoginTaskFactory {
 	
-	public static UserLoginTaskFactory create(final String email, final String password, final Context context, final UserLoginListener listener) {
-		final PasswordStoreBuilder passwordStoreBuilder = LastPassFactory.getCachingLastPass(getCacheFile(context)).getPasswordStoreBuilder(email, password,	LastPassDeviceId.get(context));
-		return new UserLoginTaskFactory(passwordStoreBuilder, listener, context);
+	/** The logins in progress in this process */
+	static final LoginCoordinator<UserLoginListener> LOGINS = new LoginCoordinator<UserLoginListener>();
+
+	/**
+	 * Create a factory for logins with the given credentials. The factory keeps its own copy of the password for
+	 * {@link OfflineLogin offline logins} and the {@link SessionSnapshot session snapshot}, so the caller may wipe it
+	 * once this returns. The copy is wiped once a login completes, unless it needs an OTP, in which case it is kept for
+	 * the login with the OTP.
+	 *
+	 * @param interactive
+	 *            True if the user asked for these logins, so they supersede a background login in progress for the
+	 *            same account rather than joining it
+	 */
+	public static UserLoginTaskFactory create(final String email, final Secret password, final boolean interactive,
+			final Context context, final UserLoginListener listener) {
+		return new UserLoginTaskFactory(createPasswordStoreBuilder(email, password, context), listener, context,
+				LoginCoordinator.getAccount(email), getCredentialsKey(email, password), interactive, email, Secret.copyOf(password));
+	}
+
+	/**
+	 * Create a builder which logs in with the given credentials, using the login cache for this application. The
+	 * password is not retained, so the caller may wipe it once this returns.
+	 */
+	static PasswordStoreBuilder createPasswordStoreBuilder(final String email, final Secret password, final Context context) {
+		// The library only accepts the password as a string
+		return LastPassFactory.getCachingLastPass(getCacheFile(context)).getPasswordStoreBuilder(email, password.toString(), LastPassDeviceId.get(context));
+	}
+
+	/** @return a digest identifying the given credentials, computed without copying the password into a string */
+	private static String getCredentialsKey(final String email, final Secret password) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+		digest.update((email + '\n').getBytes(Charset.forName("UTF-8")));
+		password.updateDigest(digest);
+		return new String(Hex.encodeHex(digest.digest()));
 	}
 
 	private static File getCacheFile(final Context context) {
@@ -33,27 +85,106 @@ public class UserLoginTaskFactory {
 	}
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(UserLoginTaskFactory.class);
+
+	/** Metrics sink which records the time taken by each login step in {@link Metrics} */
+	public static final LoginMetricsSink DEFAULT_METRICS_SINK = new LoginMetricsSink() {
+		@Override
+		public void stepCompleted(ProgressStatus status, long elapsedMillis) {
+			Metrics.recordTime("login.step." + status, elapsedMillis, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public void loginCompleted(UserLoginResult result, long elapsedMillis) {
+			Metrics.recordTime("login.total", elapsedMillis, TimeUnit.MILLISECONDS);
+			Metrics.increment(result.failureReason == null ? "login.success" : "login.failure." + result.failureReason);
+		}
+	};
+
+	private static volatile LoginMetricsSink metricsSink = DEFAULT_METRICS_SINK;
+
+	/**
+	 * Logins run on their own small pool rather than the shared {@link AsyncTask} executor, so they never queue behind
+	 * unrelated tasks. The queue is bounded, and logins which would exceed it fail immediately.
+	 */
+	private static final Executor LOGIN_EXECUTOR;
+	static {
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(4), new ThreadFactoryBuilder().setNameFormat("login-%d").build());
+		executor.allowCoreThreadTimeOut(true);
+		LOGIN_EXECUTOR = executor;
+	}
+
+	/**
+	 * Set where the timings of every login are reported
+	 * 
+	 * @param sink The sink to report to, not null
+	 */
+	public static void setMetricsSink(final LoginMetricsSink sink) {
+		Validate.notNull(sink);
+		metricsSink = sink;
+	}
 	
 	private final PasswordStoreBuilder passwordStoreBuilder;
 	private final Context context;
 	private final UserLoginListener listener;
+	private final String account;
+	private final String credentialsKey;
+	private final boolean interactive;
+	private final String email;
+	private final Secret password;
 
 	public UserLoginTaskFactory(final PasswordStoreBuilder passwordStoreBuilder, final UserLoginListener listener, final Context context) {
+		this(passwordStoreBuilder, listener, context, null, null, true, null, null);
+	}
+
+	/**
+	 * @param account
+	 *            The account being logged in to, used to keep a single login in progress per account with
+	 *            {@link #LOGINS}. May be null if logins should not be coordinated.
+	 * @param credentialsKey
+	 *            Identifies the credentials being logged in with. An interactive login without an OTP joins the login
+	 *            in progress for the same account if it has the same key.
+	 * @param interactive
+	 *            True if the user asked for these logins. A background login always joins the login in progress for
+	 *            the same account, and never supersedes it.
+	 * @param email
+	 *            The email being logged in with, or null if offline logins are not possible
+	 * @param password
+	 *            The password being logged in with, or null if offline logins are not possible
+	 */
+	private UserLoginTaskFactory(final PasswordStoreBuilder passwordStoreBuilder, final UserLoginListener listener, final Context context,
+			final String account, final String credentialsKey, final boolean interactive, final String email, final Secret password) {
 		this.passwordStoreBuilder = passwordStoreBuilder;
-		this.listener = listener;
+		this.listener = password == null ? listener : new PasswordWipingListener(listener);
 		this.context = context;
+		this.account = account;
+		this.credentialsKey = credentialsKey;
+		this.interactive = interactive;
+		this.email = email;
+		this.password = password;
 	}
 	
-	public UserLoginTask loginWithoutOtp() {
-		UserLoginTask userLoginTask = new UserLoginTask();
-		userLoginTask.execute();
-		return userLoginTask;
+	public void loginWithoutOtp() {
+		start(this.credentialsKey);
 	}
 
-	public UserLoginTask loginWithOtp(final String otp, final String trustLabel) {
-		UserLoginTask userLoginTask = new UserLoginTask();
-		userLoginTask.execute(otp, trustLabel);
-		return userLoginTask;
+	public void loginWithOtp(final String otp, final String trustLabel) {
+		// OTPs are single use, so a login with one is never joined by another interactive login
+		start(null, otp, trustLabel);
+	}
+
+	private void start(final String joinableCredentialsKey, final String... params) {
+		final UserLoginTask userLoginTask = new UserLoginTask();
+		if (this.account != null
+				&& LOGINS.join(this.account, joinableCredentialsKey, this.interactive, this.listener, userLoginTask) != null) {
+			return;
+		}
+		try {
+			userLoginTask.executeOnExecutor(LOGIN_EXECUTOR, params);
+		} catch (final RejectedExecutionException e) {
+			LOGGER.warn("Too many logins in progress", e);
+			userLoginTask.onPostExecute(new UserLoginResult(LoginFailureReason.FAIL, this.context.getString(R.string.error_login_busy)));
+		}
 	}
 	
 	public static class UserLoginResult {
@@ -93,55 +224,225 @@ public class UserLoginTaskFactory {
 		void progressDialogCreated(ProgressDialog dialog);
 	}
 
+	/** The progress of a login, published each time it moves to a new step */
+	public static class LoginProgress {
+		/** The step the login is now performing */
+		public final ProgressStatus status;
+		/** The number of this step, starting at 1 */
+		public final int step;
+
+		public LoginProgress(ProgressStatus status) {
+			this.status = status;
+			this.step = status.ordinal() + 1;
+		}
+	}
+
+	/** Receives the timing of each login, for example to record metrics. Methods may be called from any thread. */
+	public interface LoginMetricsSink {
+		/**
+		 * Called when a login moves past a step
+		 * 
+		 * @param status The step which completed
+		 * @param elapsedMillis The time spent in that step
+		 */
+		void stepCompleted(ProgressStatus status, long elapsedMillis);
+
+		/**
+		 * Called when a login finishes, whether successful or not
+		 * 
+		 * @param result The result of the login
+		 * @param elapsedMillis The total time taken by the login
+		 */
+		void loginCompleted(UserLoginResult result, long elapsedMillis);
+	}
+
+	/** Wipes the factory's copy of the password once a login completes, unless the next login needs it for an OTP */
+	private class PasswordWipingListener implements UserLoginListener {
+		private final UserLoginListener listener;
+
+		PasswordWipingListener(final UserLoginListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void loginCompleted(final UserLoginResult result) {
+			if (result.failureReason != LoginFailureReason.OTP) {
+				password.wipe();
+			}
+			this.listener.loginCompleted(result);
+		}
+
+		@Override
+		public void progressDialogCreated(final ProgressDialog dialog) {
+			this.listener.progressDialogCreated(dialog);
+		}
+	}
+
 	public enum LoginFailureReason {
 		FAIL, OTP, CANCEL
 	}
 	
-	public class UserLoginTask  extends AsyncTask<String, ProgressStatus, UserLoginResult> implements ProgressListener { 
+	public class UserLoginTask  extends AsyncTask<String, LoginProgress, UserLoginResult> implements ProgressListener,
+			LoginCoordinator.Login<UserLoginListener> { 
+		/** Everyone waiting for this login. Listeners may join from any thread, but are only called on the UI thread. */
+		private final List<UserLoginListener> listeners = new CopyOnWriteArrayList<UserLoginListener>();
+		private final int session = LOGINS.getSession();
 		private ProgressDialog progressDialog;
+		private long startTime;
+		/** Whether the store was fetched online, rather than opened from the snapshot by an offline login */
+		private boolean fetched;
+		// Only accessed from the background thread
+		private ProgressStatus currentStatus;
+		private long currentStatusStartTime;
+
+		UserLoginTask() {
+			this.listeners.add(listener);
+		}
+
+		@Override
+		public void addListener(final UserLoginListener loginListener) {
+			this.listeners.add(loginListener);
+		}
+
+		@Override
+		public void supersede() {
+			cancel(true);
+		}
+
 		@Override
 		protected void onPreExecute() {
+			this.startTime = SystemClock.elapsedRealtime();
 			this.progressDialog = new ProgressDialog(context);
 			this.progressDialog.setTitle(context.getString(R.string.login_progress_signing_in));
+			this.progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+			this.progressDialog.setIndeterminate(false);
+			this.progressDialog.setMax(ProgressStatus.values().length);
+			this.progressDialog.setOnCancelListener(new OnCancelListener() {
+				@Override
+				public void onCancel(DialogInterface dialog) {
+					cancel(true);
+				}
+			});
 			listener.progressDialogCreated(this.progressDialog);
 			this.progressDialog.show();
 		}
 	
 		@Override
 		protected UserLoginResult doInBackground(String... params) {
+			try {
+				return login(params);
+			} catch (final CancellationException e) {
+				LOGGER.debug("Login cancelled");
+				return new UserLoginResult(LoginFailureReason.CANCEL);
+			} finally {
+				completeCurrentStep(SystemClock.elapsedRealtime());
+			}
+		}
+
+		private UserLoginResult login(String... params) {
 			try {
 				PasswordStore passwordStore;
 				if (params.length == 0)
 					passwordStore = passwordStoreBuilder.getPasswordStore(this);
 				else
 					passwordStore = passwordStoreBuilder.getPasswordStore(params[0], params[1], this);
+				completeCurrentStep(SystemClock.elapsedRealtime());
+				checkCancelled();
+				this.fetched = true;
+				VaultRefreshScheduler.scheduleRefresh(context);
 				return new UserLoginResult(passwordStore);
 			} catch (final GoogleAuthenticatorRequired authenticatorRequired) {
 				LOGGER.debug("Google authenticator required", authenticatorRequired);
 				return new UserLoginResult(LoginFailureReason.OTP);
 			} catch (final LastPassException failure) {
 				LOGGER.debug("Error logging in", failure);
+				final PasswordStore offlineStore = loginOffline();
+				if (offlineStore != null) {
+					return new UserLoginResult(offlineStore);
+				}
 				return new UserLoginResult(LoginFailureReason.FAIL, failure.getMessage());
 			}
 		}
+
+		/**
+		 * Fall back to an offline login if there is no network connection, and sync with an online login once there may
+		 * be one again
+		 *
+		 * @return the password store from the offline login, or null if it was not possible
+		 */
+		private PasswordStore loginOffline() {
+			if (password == null || VaultRefreshScheduler.isNetworkAvailable(context)) {
+				return null;
+			}
+			final PasswordStore passwordStore = OfflineLogin.login(context, email, password);
+			if (passwordStore != null) {
+				LOGGER.debug("Logged in offline");
+				// Refreshes log in with the remembered password, so without one the store is only synced by the next
+				// interactive login
+				if (new Preferences(context).hasRememberedPassword()) {
+					VaultRefreshScheduler.scheduleRetry(context, 1);
+				}
+			}
+			return passwordStore;
+		}
 	
 		@Override
 		protected void onPostExecute(final UserLoginResult loginResult) {
-			this.progressDialog.dismiss();
-			listener.loginCompleted(loginResult);
+			if (account != null) {
+				LOGINS.finished(account, this);
+			}
+			if (this.progressDialog != null) {
+				this.progressDialog.dismiss();
+				metricsSink.loginCompleted(loginResult, SystemClock.elapsedRealtime() - this.startTime);
+			}
+			// Copied before the listeners are given the result, since that wipes the factory's copy
+			final Secret snapshotPassword = this.fetched && loginResult.passwordStore != null ? Secret.copyOf(password) : null;
+			for (final UserLoginListener loginListener : this.listeners) {
+				loginListener.loginCompleted(loginResult);
+			}
+			// Saved once the store has been published, so encrypting it never delays the login
+			if (snapshotPassword != null) {
+				SessionSnapshot.saveInBackground(context, new Preferences(context), loginResult.passwordStore, this.session,
+						email, snapshotPassword);
+				snapshotPassword.wipe();
+			}
+		}
+
+		/**
+		 * Abort the login by unwinding out of the login library if it has been cancelled. The library reports progress
+		 * between each network and decryption step, so this is checked each time it does.
+		 */
+		private void checkCancelled() {
+			if (isCancelled()) {
+				throw new CancellationException();
+			}
 		}
 	
 		@Override
 		public void statusChanged(ProgressStatus status) {
+			checkCancelled();
+			final long now = SystemClock.elapsedRealtime();
+			completeCurrentStep(now);
+			this.currentStatus = status;
+			this.currentStatusStartTime = now;
 			// Queue progress update to happen on the UI thread from the background thread
-			publishProgress(status);
+			publishProgress(new LoginProgress(status));
+		}
+
+		private void completeCurrentStep(final long now) {
+			if (this.currentStatus != null) {
+				metricsSink.stepCompleted(this.currentStatus, now - this.currentStatusStartTime);
+				this.currentStatus = null;
+			}
 		}
 	
 		@Override
-		protected void onProgressUpdate(final ProgressStatus... statuses) {
-			assert statuses.length == 1;
+		protected void onProgressUpdate(final LoginProgress... progresses) {
+			assert progresses.length == 1;
 			// Update the progress on the UI thread
-			final ProgressStatus status = statuses[0];
+			final LoginProgress progress = progresses[0];
+			this.progressDialog.setProgress(progress.step);
+			final ProgressStatus status = progress.status;
 			final int stringId;
 			switch (status) {
 			case LOGGING_IN:
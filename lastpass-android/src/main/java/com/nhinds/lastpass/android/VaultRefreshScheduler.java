@@ -0,0 +1,123 @@
+package com.nhinds.lastpass.android;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+
+/**
+ * Schedules {@link VaultRefreshService} to refresh the password store in the background, so the password popup opens
+ * against an up to date store without waiting for a login.
+ * <p>
+ * Refreshes use non-waking alarms, so they are batched with other work and only run while the device is already awake.
+ * Failed refreshes are retried with exponential backoff, and refreshes are deferred while there is no network
+ * connection or the battery is low and not charging.
+ */
+public final class VaultRefreshScheduler {
+	private static final Logger LOGGER = LoggerFactory.getLogger(VaultRefreshScheduler.class);
+
+	/** Delay before the first refresh after the device boots */
+	private static final long BOOT_DELAY_MILLIS = 5 * 60 * 1000L;
+	/** Delay before checking again when the network or battery conditions are not met */
+	private static final long DEFERRED_DELAY_MILLIS = 15 * 60 * 1000L;
+	/** Delay before the first retry of a failed refresh, doubled for each further failure */
+	private static final long RETRY_BASE_DELAY_MILLIS = 60 * 1000L;
+	private static final int MAX_RETRY_SHIFT = 16;
+	/** Battery percentage below which refreshes are deferred unless the device is charging */
+	private static final int LOW_BATTERY_PERCENT = 20;
+
+	private VaultRefreshScheduler() {
+	}
+
+	/** Schedule the next refresh after the configured refresh interval, replacing any scheduled refresh */
+	public static void scheduleRefresh(final Context context) {
+		final long interval = new Preferences(context).getRefreshIntervalMillis();
+		if (interval <= 0) {
+			cancel(context);
+		} else {
+			schedule(context, interval, 0);
+		}
+	}
+
+	/** Schedule the first refresh after the device boots */
+	static void scheduleAfterBoot(final Context context) {
+		if (new Preferences(context).getRefreshIntervalMillis() > 0) {
+			schedule(context, BOOT_DELAY_MILLIS, 0);
+		}
+	}
+
+	/**
+	 * Schedule a retry after a failed refresh
+	 * 
+	 * @param attempt The number of consecutive failed attempts, starting at 1
+	 */
+	static void scheduleRetry(final Context context, final int attempt) {
+		final long interval = new Preferences(context).getRefreshIntervalMillis();
+		if (interval > 0) {
+			final long backoff = RETRY_BASE_DELAY_MILLIS << Math.min(attempt - 1, MAX_RETRY_SHIFT);
+			schedule(context, Math.min(backoff, interval), attempt);
+		}
+	}
+
+	/** Schedule another attempt once conditions may have changed, without counting it as a failure */
+	static void scheduleDeferred(final Context context, final int attempt) {
+		schedule(context, DEFERRED_DELAY_MILLIS, attempt);
+	}
+
+	/** Cancel any scheduled refresh */
+	public static void cancel(final Context context) {
+		getAlarmManager(context).cancel(createPendingIntent(context, 0));
+	}
+
+	/** @return true if the device has a network connection */
+	static boolean isNetworkAvailable(final Context context) {
+		final ConnectivityManager connectivityManager = (ConnectivityManager) context
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		final NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+		return networkInfo != null && networkInfo.isConnected();
+	}
+
+	/** @return true if the device has a network connection, and the battery is either charging or not low */
+	static boolean canRefreshNow(final Context context) {
+		if (!isNetworkAvailable(context)) {
+			LOGGER.debug("No network connection");
+			return false;
+		}
+
+		// The battery status is a sticky broadcast, so registering a null receiver just returns the current status
+		final Intent batteryStatus = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if (batteryStatus != null) {
+			final boolean charging = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+			final int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+			final int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+			if (!charging && level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT) {
+				LOGGER.debug("Battery is low and not charging");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void schedule(final Context context, final long delayMillis, final int attempt) {
+		LOGGER.debug("Scheduling password store refresh in {}ms (attempt {})", delayMillis, attempt);
+		getAlarmManager(context).set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delayMillis,
+				createPendingIntent(context, attempt));
+	}
+
+	private static PendingIntent createPendingIntent(final Context context, final int attempt) {
+		final Intent intent = new Intent(context, VaultRefreshService.class).putExtra(VaultRefreshService.EXTRA_ATTEMPT, attempt);
+		return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+
+	private static AlarmManager getAlarmManager(final Context context) {
+		return (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+	}
+}
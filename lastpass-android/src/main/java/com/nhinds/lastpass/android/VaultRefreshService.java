@@ -0,0 +1,170 @@
+package com.nhinds.lastpass.android;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.nhinds.lastpass.GoogleAuthenticatorRequired;
+import com.nhinds.lastpass.LastPassException;
+import com.nhinds.lastpass.PasswordStore;
+import com.nhinds.lastpass.LastPass.PasswordStoreBuilder;
+import com.nhinds.lastpass.LastPass.ProgressListener;
+import com.nhinds.lastpass.LastPass.ProgressStatus;
+import com.nhinds.lastpass.android.UserLoginTaskFactory.LoginFailureReason;
+import com.nhinds.lastpass.android.UserLoginTaskFactory.UserLoginListener;
+import com.nhinds.lastpass.android.UserLoginTaskFactory.UserLoginResult;
+
+/**
+ * Logs in with the remembered credentials and replaces the keyboard's password store with a fresh one.
+ * 
+ * @see VaultRefreshScheduler
+ */
+public class VaultRefreshService extends IntentService {
+	private static final Logger LOGGER = LoggerFactory.getLogger(VaultRefreshService.class);
+
+	static final String EXTRA_ATTEMPT = VaultRefreshService.class.getName() + "#Attempt";
+
+	public VaultRefreshService() {
+		super(VaultRefreshService.class.getSimpleName());
+	}
+
+	@Override
+	protected void onHandleIntent(final Intent intent) {
+		// Taken before anything is read, so a logout from here on stops the refresh from saving or publishing anything
+		final int session = UserLoginTaskFactory.LOGINS.getSession();
+		final int attempt = intent.getIntExtra(EXTRA_ATTEMPT, 0);
+		final Preferences preferences = new Preferences(this);
+		final String rememberedEmail = preferences.getRememberedEmail();
+		if (rememberedEmail == null || !preferences.hasRememberedPassword()) {
+			LOGGER.debug("No remembered credentials, not refreshing password store");
+			return;
+		}
+		if (!VaultRefreshScheduler.canRefreshNow(this)) {
+			VaultRefreshScheduler.scheduleDeferred(this, attempt);
+			return;
+		}
+
+		final String account = LoginCoordinator.getAccount(rememberedEmail);
+		final RefreshLogin refresh = new RefreshLogin(session);
+		if (UserLoginTaskFactory.LOGINS.join(account, null, false, null, refresh) != null) {
+			LOGGER.debug("Login already in progress, not refreshing password store");
+			VaultRefreshScheduler.scheduleRefresh(this);
+			return;
+		}
+		try {
+			refresh(preferences, rememberedEmail, attempt, refresh);
+		} finally {
+			UserLoginTaskFactory.LOGINS.finished(account, refresh);
+		}
+	}
+
+	private void refresh(final Preferences preferences, final String rememberedEmail, final int attempt,
+			final RefreshLogin refresh) {
+		final Secret rememberedPassword = preferences.getRememberedPassword();
+		if (rememberedPassword == null) {
+			LOGGER.debug("Remembered password could not be decrypted, not refreshing password store");
+			refresh.complete(new UserLoginResult(LoginFailureReason.FAIL), false);
+			return;
+		}
+		try {
+			final PasswordStoreBuilder passwordStoreBuilder = UserLoginTaskFactory.createPasswordStoreBuilder(
+					rememberedEmail, rememberedPassword, this);
+			final PasswordStore passwordStore = passwordStoreBuilder.getPasswordStore(refresh);
+			refresh.checkSuperseded();
+			final boolean changed = !SessionSnapshot.isUnchanged(SessionSnapshot.fingerprint(passwordStore));
+			// Published before the snapshot is saved, so encrypting it never delays the keyboard
+			refresh.complete(new UserLoginResult(passwordStore), changed);
+			if (changed) {
+				// Saved on the snapshot thread like every other snapshot, with its own copy of the password, so it can't
+				// be written at the same time as one saved by a login. The service may be destroyed before it is saved.
+				SessionSnapshot.saveInBackground(getApplicationContext(), preferences, passwordStore, refresh.session,
+						rememberedEmail, rememberedPassword);
+			} else {
+				// Keep the existing store, along with the indexes the keyboard has already built over it, and renew its
+				// snapshot so it doesn't expire while the store is still up to date
+				LOGGER.debug("Password store is unchanged");
+				SessionSnapshot.touchInBackground(getApplicationContext(), refresh.session);
+			}
+			VaultRefreshScheduler.scheduleRefresh(this);
+		} catch (final CancellationException e) {
+			LOGGER.debug("Refresh superseded by another login, or by logging out");
+			refresh.complete(new UserLoginResult(LoginFailureReason.CANCEL), false);
+		} catch (final GoogleAuthenticatorRequired authenticatorRequired) {
+			// Can't complete this login without the user, so wait for them to log in interactively
+			LOGGER.debug("Google authenticator required, not refreshing password store", authenticatorRequired);
+			refresh.complete(new UserLoginResult(LoginFailureReason.OTP), false);
+		} catch (final LastPassException failure) {
+			LOGGER.debug("Error refreshing password store", failure);
+			refresh.complete(new UserLoginResult(LoginFailureReason.FAIL, failure.getMessage()), false);
+			VaultRefreshScheduler.scheduleRetry(this, attempt + 1);
+		} finally {
+			rememberedPassword.wipe();
+		}
+	}
+
+	/**
+	 * A refresh, registered with {@link UserLoginTaskFactory#LOGINS} like any other login so a background login from the
+	 * keyboard joins it rather than fetching the vault again, and an interactive login or logging out supersedes it
+	 */
+	private static class RefreshLogin implements LoginCoordinator.Login<UserLoginListener>, ProgressListener {
+		private final List<UserLoginListener> listeners = new CopyOnWriteArrayList<UserLoginListener>();
+		private final int session;
+		private volatile boolean superseded;
+
+		RefreshLogin(final int session) {
+			this.session = session;
+		}
+
+		@Override
+		public void addListener(final UserLoginListener listener) {
+			this.listeners.add(listener);
+		}
+
+		@Override
+		public void supersede() {
+			this.superseded = true;
+		}
+
+		@Override
+		public void statusChanged(final ProgressStatus status) {
+			LOGGER.trace("Refresh status: {}", status);
+			// Unwind out of the login library, as UserLoginTask does when it is cancelled
+			checkSuperseded();
+		}
+
+		void checkSuperseded() {
+			if (this.superseded || !UserLoginTaskFactory.LOGINS.isCurrentSession(this.session)) {
+				throw new CancellationException();
+			}
+		}
+
+		/**
+		 * Give the result to everyone who joined this refresh, and publish the refreshed store to the keyboard if it
+		 * changed, unless the user has logged out since the refresh started
+		 */
+		void complete(final UserLoginResult result, final boolean publish) {
+			// The keyboard only touches its password store on the main thread, which is also where logging out happens
+			new Handler(Looper.getMainLooper()).post(new Runnable() {
+				@Override
+				public void run() {
+					final boolean current = UserLoginTaskFactory.LOGINS.isCurrentSession(RefreshLogin.this.session);
+					if (publish && current) {
+						SoftKeyboard.setPasswordStore(result.passwordStore);
+					}
+					final UserLoginResult delivered = current ? result : new UserLoginResult(LoginFailureReason.CANCEL);
+					for (final UserLoginListener listener : RefreshLogin.this.listeners) {
+						listener.loginCompleted(delivered);
+					}
+				}
+			});
+		}
+	}
+}